@@ -49,8 +49,11 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -126,7 +129,7 @@ public class DynamoPersistence<I, T> extends AbstractPersistance<I, T> implement
     @Override
     protected void load() {
         log.debug( "loading data from {}", tableName );
-        Consumer<Metadata<T>> cons = metadata -> storage.memory.put( storage.identifier.get( metadata.object ), metadata );
+        Consumer<Metadata<T>> cons = this::loaded;
         log.info( "Loading documents from [{}] DynamoDB table", tableName );
         dynamodbClient.getRecordsByScan( tableName, null ).map( convertFromDynamoItem ).forEach( cons );
         log.info( storage.size() + " object(s) loaded." );
@@ -134,40 +137,55 @@ public class DynamoPersistence<I, T> extends AbstractPersistance<I, T> implement
 
     @Override
     public void fsync() {
-        var time = DateTimeUtils.currentTimeMillis();
         synchronizedOn( lock, () -> {
             if( stopped ) return;
-            log.trace( "fsyncing, last: {}, objects in storage: {}", lastExecuted, storage.size() );
+            log.trace( "fsyncing, last: {}, objects in storage: {}", lastSeq, storage.size() );
             var list = new ArrayList<AbstractOperation>( batchSize );
-            var deletedIds = new ArrayList<I>( batchSize );
+            var deleted = new ArrayList<Pair<I, Long>>( batchSize );
             AtomicInteger updated = new AtomicInteger();
-            storage.memory.selectUpdatedSince( lastExecuted ).forEach( ( id, m ) -> {
+            AtomicLong batchSeq = new AtomicLong( lastSeq );
+            AtomicBoolean failed = new AtomicBoolean();
+            storage.memory.selectChangedAfter( lastSeq ).forEach( ( id, m ) -> {
+                if( failed.get() ) return;
                 updated.incrementAndGet();
+                batchSeq.set( m.seq );
                 if( m.isDeleted() ) {
-                    deletedIds.add( id );
+                    deleted.add( __( id, m.seq ) );
                     list.add( new DeleteItemOperation( new Key( tableName, "id", id.toString() ) ) );
                 } else {
                     list.add( new UpdateItemOperation( new Key( tableName, "id", id.toString() ), convertToDynamoItem.apply( m ) ) );
                 }
                 if( list.size() >= batchSize ) {
-                    persist( deletedIds, list );
+                    if( persist( deleted, list ) ) lastSeq = batchSeq.get();
+                    else failed.set( true );
                 }
             } );
-            log.trace( "fsyncing, last: {}, updated objects in storage: {}, total in storage: {}", lastExecuted, updated.get(), storage.size() );
-            persist( deletedIds, list );
-            lastExecuted = time;
+            log.trace( "fsyncing, last: {}, updated objects in storage: {}, total in storage: {}", lastSeq, updated.get(), storage.size() );
+            if( !failed.get() && persist( deleted, list ) ) lastSeq = batchSeq.get();
+            storage.memory.persisted( lastSeq );
         } );
     }
 
-    private void persist( List<I> deletedIds, List<AbstractOperation> list ) {
-        if( stopped ) return;
-        if( list.isEmpty() ) return;
+    @Override
+    public Optional<Metadata<T>> fetch( I id ) {
+        var res = dynamodbClient.getRecord( new Key( tableName, "id", id.toString() ), null );
+        if( res == null || !res.isSuccess() || res.getSuccessValue() == null ) return Optional.empty();
+        return Optional.of( convertFromDynamoItem.apply( res.getSuccessValue() ) );
+    }
+
+    /**
+     * @return false if the batch was not written, it is then dumped and left for the next fsync
+     */
+    private boolean persist( List<Pair<I, Long>> deleted, List<AbstractOperation> list ) {
+        if( stopped ) return false;
+        if( list.isEmpty() ) return true;
         try {
             batchWriter.addOperations( list );
             batchWriter.write();
-            deletedIds.forEach( storage.memory::removePermanently );
+            deleted.forEach( p -> storage.memory.purgeTombstone( p._1, p._2 ) );
             list.clear();
-            deletedIds.clear();
+            deleted.clear();
+            return true;
         } catch( Exception e ) {
             Path filename = crashDumpPath.resolve( CRASH_DUMP_PATH_FORMAT_MILLIS.print( DateTimeUtils.currentTimeMillis() ) + ".json.gz" );
             log.error( "cannot persist. Dumping to " + filename + "...", e );
@@ -176,6 +194,9 @@ public class DynamoPersistence<I, T> extends AbstractPersistance<I, T> implement
                 .map( model -> __( "replace", model ) )
                 .toList();
             Files.write( filename, GZIP, Binder.json.marshal( dump ), ContentWriter.ofString() );
+            list.clear();
+            deleted.clear();
+            return false;
         }
     }
 
@@ -49,8 +49,11 @@ import java.io.Closeable;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import static com.mongodb.client.model.Filters.eq;
@@ -95,7 +98,7 @@ public class MongoPersistence<I, T> extends AbstractPersistance<I, T> implements
             @Override
             public void permanentlyDeleted( IdObject<I, T> object ) {
                 log.debug( "permanentlyDeleted collection {} id {}", tableName, object.id );
-                collection.deleteOne( eq( "_id", object.id ) );
+                collection.deleteOne( eq( "_id", storage.identifier.toString( object.id ) ) );
             }
         } );
     }
@@ -124,7 +127,7 @@ public class MongoPersistence<I, T> extends AbstractPersistance<I, T> implements
     @Override
     protected void load() {
         log.debug( "loading data from {}", collection.getNamespace() );
-        Consumer<Metadata<T>> cons = metadata -> storage.memory.put( storage.identifier.get( metadata.object ), metadata );
+        Consumer<Metadata<T>> cons = this::loaded;
         log.info( "Loading documents from [{}] MongoDB table", collection.getNamespace() );
         collection.find().forEach( cons );
         log.info( storage.size() + " object(s) loaded." );
@@ -132,38 +135,51 @@ public class MongoPersistence<I, T> extends AbstractPersistance<I, T> implements
 
     @Override
     public void fsync() {
-        var time = DateTimeUtils.currentTimeMillis();
         synchronizedOn( lock, () -> {
             if( stopped ) return;
-            log.trace( "fsyncing, last: {}, objects in storage: {}", lastExecuted, storage.size() );
+            log.trace( "fsyncing, last: {}, objects in storage: {}", lastSeq, storage.size() );
             var list = new ArrayList<WriteModel<Metadata<T>>>( batchSize );
-            var deletedIds = new ArrayList<I>( batchSize );
+            var deleted = new ArrayList<Pair<I, Long>>( batchSize );
             AtomicInteger updated = new AtomicInteger();
-            storage.memory.selectUpdatedSince( lastExecuted ).forEach( ( id, m ) -> {
+            AtomicLong batchSeq = new AtomicLong( lastSeq );
+            AtomicBoolean failed = new AtomicBoolean();
+            storage.memory.selectChangedAfter( lastSeq ).forEach( ( id, m ) -> {
+                if( failed.get() ) return;
                 updated.incrementAndGet();
+                batchSeq.set( m.seq );
                 if( m.isDeleted() ) {
-                    deletedIds.add( id );
-                    list.add( new DeleteOneModel<>( eq( "_id", id ) ) );
+                    deleted.add( __( id, m.seq ) );
+                    list.add( new DeleteOneModel<>( eq( "_id", storage.identifier.toString( id ) ) ) );
                 } else {
-                    list.add( new ReplaceOneModel<>( eq( "_id", id ), m, REPLACE_OPTIONS_UPSERT ) );
+                    list.add( new ReplaceOneModel<>( eq( "_id", storage.identifier.toString( id ) ), m, REPLACE_OPTIONS_UPSERT ) );
                 }
                 if( list.size() >= batchSize ) {
-                    persist( deletedIds, list );
+                    if( persist( deleted, list ) ) lastSeq = batchSeq.get();
+                    else failed.set( true );
                 }
             } );
-            log.trace( "fsyncing, last: {}, updated objects in storage: {}, total in storage: {}", lastExecuted, updated.get(), storage.size() );
-            persist( deletedIds, list );
-            lastExecuted = time;
+            log.trace( "fsyncing, last: {}, updated objects in storage: {}, total in storage: {}", lastSeq, updated.get(), storage.size() );
+            if( !failed.get() && persist( deleted, list ) ) lastSeq = batchSeq.get();
+            storage.memory.persisted( lastSeq );
         } );
     }
 
-    private void persist( List<I> deletedIds, List<WriteModel<Metadata<T>>> list ) {
-        if( list.isEmpty() ) return;
+    @Override
+    public Optional<Metadata<T>> fetch( I id ) {
+        return Optional.ofNullable( collection.find( eq( "_id", storage.identifier.toString( id ) ) ).first() );
+    }
+
+    /**
+     * @return false if the batch was not written, it is then dumped and left for the next fsync
+     */
+    private boolean persist( List<Pair<I, Long>> deleted, List<WriteModel<Metadata<T>>> list ) {
+        if( list.isEmpty() ) return true;
         try {
             collection.bulkWrite( list, new BulkWriteOptions().ordered( false ) );
-            deletedIds.forEach( storage.memory::removePermanently );
+            deleted.forEach( p -> storage.memory.purgeTombstone( p._1, p._2 ) );
             list.clear();
-            deletedIds.clear();
+            deleted.clear();
+            return true;
         } catch( Exception e ) {
             Path filename = crashDumpPath.resolve( CRASH_DUMP_PATH_FORMAT_MILLIS.print( DateTimeUtils.currentTimeMillis() ) + ".json.gz" );
             log.error( "cannot persist. Dumping to " + filename + "...", e );
@@ -172,6 +188,9 @@ public class MongoPersistence<I, T> extends AbstractPersistance<I, T> implements
                 .map( model -> __( "replace", ( ( ReplaceOneModel<Metadata<T>> ) model ).getReplacement() ) )
                 .toList();
             Files.writeString( filename, GZIP, Binder.json.marshal( dump ) );
+            list.clear();
+            deleted.clear();
+            return false;
         }
     }
 
@@ -47,7 +47,7 @@ import static oap.concurrent.Threads.synchronizedOn;
 
 @Slf4j
 @ToString( of = { "tableName", "delay", "batchSize", "watch", "serviceName" } )
-public abstract class AbstractPersistance<I, T> implements Closeable, AutoCloseable {
+public abstract class AbstractPersistance<I, T> implements ReadThrough<I, T>, Closeable, AutoCloseable {
 
     public static final Path DEFAULT_CRASH_DUMP_PATH = Path.of( "/tmp/mongo-persistance-crash-dump" );
     public static final DateTimeFormatter CRASH_DUMP_PATH_FORMAT_MILLIS = DateTimeFormat
@@ -65,7 +65,7 @@ public abstract class AbstractPersistance<I, T> implements Closeable, AutoClosea
     protected int batchSize = 100;
     protected final ExecutorService watchExecutor = Executors.newSingleThreadExecutor();
     protected final ScheduledExecutorService scheduler = oap.concurrent.Executors.newScheduledThreadPool( 1, serviceName );
-    protected volatile long lastExecuted = -1;
+    protected volatile long lastSeq = -1;
     protected volatile boolean stopped = false;
 
     public AbstractPersistance( MemoryStorage<I, T> storage, String tableName, long delay, Path crashDumpPath ) {
@@ -73,6 +73,7 @@ public abstract class AbstractPersistance<I, T> implements Closeable, AutoClosea
         this.tableName = tableName;
         this.delay = delay;
         this.crashDumpPath = crashDumpPath.resolve( tableName );
+        storage.setReadThrough( this );
     }
 
     public void preStart() {
@@ -81,6 +82,8 @@ public abstract class AbstractPersistance<I, T> implements Closeable, AutoClosea
 
         synchronizedOn( lock, () -> {
             this.load();
+            lastSeq = storage.memory.lastSeq();
+            storage.memory.persisted( lastSeq );
             scheduler.scheduleWithFixedDelay( this::fsync, delay, delay, TimeUnit.MILLISECONDS );
         } );
 
@@ -107,6 +110,14 @@ public abstract class AbstractPersistance<I, T> implements Closeable, AutoClosea
 
     protected abstract void load();
 
+    /**
+     * Puts an object read by {@link #load()}, a bounded storage evicts loaded objects as it fills up.
+     */
+    protected void loaded( Metadata<T> metadata ) {
+        storage.memory.put( storage.identifier.get( metadata.object ), metadata );
+        if( storage.memory.bounded() ) storage.memory.persisted( storage.memory.lastSeq() );
+    }
+
     protected abstract void processRecords( CountDownLatch cdl );
 
     @Override
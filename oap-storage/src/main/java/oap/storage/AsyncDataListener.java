@@ -0,0 +1,255 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import oap.storage.Storage.DataListener;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers events to a slow listener on a dedicated thread, so writers of the storage do not wait for it.
+ * Pending events are coalesced per id (the latest object wins, added followed by updated stays added)
+ * and delivered in batches.
+ * <p>
+ * The number of pending ids is bounded by {@code capacity}, see {@link Backpressure} for the behaviour when it is reached.
+ * Events posted after {@link #close()} are dropped.
+ */
+@Slf4j
+public class AsyncDataListener<I, T> implements DataListener<I, T>, Closeable {
+    private final DataListener<I, T> listener;
+    private final int capacity;
+    private final Backpressure backpressure;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Object delivery = new Object();
+    private LinkedHashMap<I, Event<I, T>> pending = new LinkedHashMap<>();
+    private List<Changed<I, T>> pendingChanged = new ArrayList<>();
+    private boolean scheduled = false;
+    private boolean closed = false;
+
+    public AsyncDataListener( DataListener<I, T> listener, int capacity, Backpressure backpressure ) {
+        this.listener = listener;
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Exposes the number of pending events as the {@code oap_storage_listener_queue} gauge.
+     */
+    public AsyncDataListener<I, T> withMetrics( String storageName ) {
+        Metrics.gauge( "oap_storage_listener_queue", Tags.of( "storage", storageName ), this, l -> ( double ) l.depth() );
+        return this;
+    }
+
+    public synchronized int depth() {
+        return pending.size() + pendingChanged.size();
+    }
+
+    @Override
+    public void added( List<IdObject<I, T>> objects ) {
+        post( Kind.ADDED, objects );
+    }
+
+    @Override
+    public void updated( List<IdObject<I, T>> objects ) {
+        post( Kind.UPDATED, objects );
+    }
+
+    @Override
+    public void deleted( List<IdObject<I, T>> objects ) {
+        post( Kind.DELETED, objects );
+    }
+
+    @Override
+    public void permanentlyDeleted( IdObject<I, T> object ) {
+        post( Kind.PERMANENTLY_DELETED, List.of( object ) );
+    }
+
+    @Override
+    public void permanentlyDeleted( List<IdObject<I, T>> objects ) {
+        post( Kind.PERMANENTLY_DELETED, objects );
+    }
+
+    @Override
+    public void changed( List<IdObject<I, T>> added, List<IdObject<I, T>> updated, List<IdObject<I, T>> deleted ) {
+        awaitCapacity();
+        synchronized( this ) {
+            if( closed ) {
+                log.debug( "listener {} is closed, dropping changed event", listener );
+                return;
+            }
+            pendingChanged.add( new Changed<>( added, updated, deleted ) );
+            schedule();
+        }
+    }
+
+    private void post( Kind kind, List<IdObject<I, T>> objects ) {
+        if( objects.isEmpty() ) return;
+        awaitCapacity();
+        synchronized( this ) {
+            if( closed ) {
+                log.debug( "listener {} is closed, dropping {} {} events", listener, objects.size(), kind );
+                return;
+            }
+            for( var io : objects )
+                pending.merge( io.id, new Event<>( kind, io ), Event::merge );
+            schedule();
+        }
+    }
+
+    private void awaitCapacity() {
+        if( backpressure == Backpressure.CALLER_RUNS ) {
+            if( depth() >= capacity ) drain();
+            return;
+        }
+        synchronized( this ) {
+            while( !closed && depth() >= capacity ) try {
+                wait();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void schedule() {
+        if( scheduled ) return;
+        scheduled = true;
+        executor.execute( this::drain );
+    }
+
+    private void drain() {
+        synchronized( delivery ) {
+            Map<I, Event<I, T>> batch;
+            List<Changed<I, T>> changed;
+            synchronized( this ) {
+                batch = pending;
+                changed = pendingChanged;
+                pending = new LinkedHashMap<>();
+                pendingChanged = new ArrayList<>();
+                scheduled = false;
+                notifyAll();
+            }
+            deliver( batch, changed );
+        }
+    }
+
+    private void deliver( Map<I, Event<I, T>> batch, List<Changed<I, T>> changed ) {
+        var added = new ArrayList<IdObject<I, T>>();
+        var updated = new ArrayList<IdObject<I, T>>();
+        var deleted = new ArrayList<IdObject<I, T>>();
+        var permanentlyDeleted = new ArrayList<IdObject<I, T>>();
+        for( var event : batch.values() )
+            switch( event.kind ) {
+                case ADDED -> added.add( event.object );
+                case UPDATED -> updated.add( event.object );
+                case DELETED -> deleted.add( event.object );
+                case PERMANENTLY_DELETED -> permanentlyDeleted.add( event.object );
+            }
+        if( !added.isEmpty() ) deliver( Kind.ADDED, () -> listener.added( added ) );
+        if( !updated.isEmpty() ) deliver( Kind.UPDATED, () -> listener.updated( updated ) );
+        if( !deleted.isEmpty() ) deliver( Kind.DELETED, () -> listener.deleted( deleted ) );
+        if( !permanentlyDeleted.isEmpty() ) deliver( Kind.PERMANENTLY_DELETED, () -> listener.permanentlyDeleted( permanentlyDeleted ) );
+        for( var c : changed ) deliver( "changed", () -> listener.changed( c.added, c.updated, c.deleted ) );
+    }
+
+    /**
+     * a failure of one event kind does not prevent delivery of the others
+     */
+    private void deliver( Object kind, Runnable delivery ) {
+        try {
+            delivery.run();
+        } catch( Exception e ) {
+            log.error( "listener {} failed on {}: {}", listener, kind, e.getMessage(), e );
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized( this ) {
+            closed = true;
+            notifyAll();
+        }
+        executor.shutdown();
+        try {
+            if( !executor.awaitTermination( 1, TimeUnit.MINUTES ) )
+                log.error( "listener {} did not finish within 1 min", listener );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+    }
+
+    public enum Backpressure {
+        /**
+         * the writer waits until the listener thread catches up. Storages fire some events under the per id lock,
+         * so a slow listener stalls other writers of the same id meanwhile.
+         */
+        BLOCK,
+        /**
+         * the writer delivers pending events itself
+         */
+        CALLER_RUNS
+    }
+
+    private enum Kind {
+        ADDED, UPDATED, DELETED, PERMANENTLY_DELETED
+    }
+
+    private static final class Event<I, T> {
+        final Kind kind;
+        final IdObject<I, T> object;
+
+        Event( Kind kind, IdObject<I, T> object ) {
+            this.kind = kind;
+            this.object = object;
+        }
+
+        static <I, T> Event<I, T> merge( Event<I, T> old, Event<I, T> event ) {
+            return old.kind == Kind.ADDED && event.kind == Kind.UPDATED ? new Event<>( Kind.ADDED, event.object ) : event;
+        }
+    }
+
+    private static final class Changed<I, T> {
+        final List<IdObject<I, T>> added;
+        final List<IdObject<I, T>> updated;
+        final List<IdObject<I, T>> deleted;
+
+        Changed( List<IdObject<I, T>> added, List<IdObject<I, T>> updated, List<IdObject<I, T>> deleted ) {
+            this.added = added;
+            this.updated = updated;
+            this.deleted = deleted;
+        }
+    }
+}
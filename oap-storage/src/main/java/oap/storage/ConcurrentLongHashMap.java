@@ -0,0 +1,419 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import javax.annotation.Nonnull;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Concurrent map of primitive long keys, open addressing with linear probing over segments.
+ * A mapping costs a long and a reference slot instead of a boxed key and a node.
+ * <p>
+ * Reads are optimistic, writes lock one segment. Remapping functions run under the segment lock
+ * and must not access the map. Iteration is weakly consistent, one segment at a time.
+ */
+public class ConcurrentLongHashMap<V> extends AbstractMap<Long, V> implements ConcurrentMap<Long, V> {
+    private static final float LOAD_FACTOR = 0.75f;
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    public ConcurrentLongHashMap() {
+        this( 16, 64 );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public ConcurrentLongHashMap( int concurrency, int initialCapacity ) {
+        int segments = powerOfTwo( concurrency );
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros( segments );
+        this.segments = new Segment[segments];
+        int capacity = powerOfTwo( Math.max( 2, initialCapacity / segments ) );
+        for( int i = 0; i < segments; i++ ) this.segments[i] = new Segment<>( capacity );
+    }
+
+    private static int powerOfTwo( int n ) {
+        return n <= 1 ? 1 : Integer.highestOneBit( n - 1 ) << 1;
+    }
+
+    private static int hash( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return ( int ) ( h ^ ( h >>> 32 ) );
+    }
+
+    private Segment<V> segment( int hash ) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    public V get( long key ) {
+        int hash = hash( key );
+        return segment( hash ).get( key, hash );
+    }
+
+    public boolean containsKey( long key ) {
+        return get( key ) != null;
+    }
+
+    public V put( long key, @Nonnull V value ) {
+        requireNonNull( value );
+        int hash = hash( key );
+        return segment( hash ).put( key, hash, value, false );
+    }
+
+    public V remove( long key ) {
+        int hash = hash( key );
+        return segment( hash ).remove( key, hash, null );
+    }
+
+    @Override
+    public V get( Object key ) {
+        return key instanceof Long ? get( ( long ) ( Long ) key ) : null;
+    }
+
+    @Override
+    public boolean containsKey( Object key ) {
+        return get( key ) != null;
+    }
+
+    @Override
+    public V put( Long key, V value ) {
+        return put( ( long ) key, value );
+    }
+
+    @Override
+    public V remove( Object key ) {
+        return key instanceof Long ? remove( ( long ) ( Long ) key ) : null;
+    }
+
+    @Override
+    public boolean remove( Object key, Object value ) {
+        if( !( key instanceof Long ) || value == null ) return false;
+        long k = ( Long ) key;
+        int hash = hash( k );
+        return segment( hash ).remove( k, hash, value ) != null;
+    }
+
+    @Override
+    public V putIfAbsent( @Nonnull Long key, V value ) {
+        requireNonNull( value );
+        int hash = hash( key );
+        return segment( hash ).put( key, hash, value, true );
+    }
+
+    @Override
+    public boolean replace( @Nonnull Long key, @Nonnull V oldValue, @Nonnull V newValue ) {
+        requireNonNull( oldValue );
+        requireNonNull( newValue );
+        boolean[] replaced = new boolean[1];
+        computeIfPresent( key, ( k, v ) -> {
+            if( !v.equals( oldValue ) ) return v;
+            replaced[0] = true;
+            return newValue;
+        } );
+        return replaced[0];
+    }
+
+    @Override
+    public V replace( @Nonnull Long key, @Nonnull V value ) {
+        requireNonNull( value );
+        Object[] old = new Object[1];
+        computeIfPresent( key, ( k, v ) -> {
+            old[0] = v;
+            return value;
+        } );
+        @SuppressWarnings( "unchecked" )
+        V result = ( V ) old[0];
+        return result;
+    }
+
+    @Override
+    public V compute( Long key, @Nonnull BiFunction<? super Long, ? super V, ? extends V> remapping ) {
+        int hash = hash( key );
+        return segment( hash ).compute( key, hash, remapping, false );
+    }
+
+    @Override
+    public V computeIfPresent( Long key, @Nonnull BiFunction<? super Long, ? super V, ? extends V> remapping ) {
+        int hash = hash( key );
+        return segment( hash ).compute( key, hash, remapping, true );
+    }
+
+    @Override
+    public V computeIfAbsent( Long key, @Nonnull Function<? super Long, ? extends V> mapping ) {
+        V value = get( ( long ) key );
+        if( value != null ) return value;
+        return compute( key, ( k, v ) -> v != null ? v : mapping.apply( k ) );
+    }
+
+    @Override
+    public V merge( Long key, @Nonnull V value, @Nonnull BiFunction<? super V, ? super V, ? extends V> remapping ) {
+        requireNonNull( value );
+        return compute( key, ( k, v ) -> v == null ? value : remapping.apply( v, value ) );
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for( var segment : segments ) size += segment.size;
+        return ( int ) Math.min( size, Integer.MAX_VALUE );
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for( var segment : segments ) if( segment.size > 0 ) return false;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for( var segment : segments ) segment.clear();
+    }
+
+    @Override
+    @Nonnull
+    public Set<Entry<Long, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            @Nonnull
+            public Iterator<Entry<Long, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentLongHashMap.this.size();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Entry<Long, V>> {
+        private int segment = -1;
+        private long[] keys = new long[0];
+        private Object[] values = new Object[0];
+        private int index = -1;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            while( true ) {
+                index++;
+                while( index < values.length && values[index] == null ) index++;
+                if( index < values.length || segment + 1 >= segments.length ) return;
+                segment++;
+                Segment<V> s = segments[segment];
+                long stamp = s.readLock();
+                try {
+                    keys = s.keys.clone();
+                    values = s.values.clone();
+                } finally {
+                    s.unlockRead( stamp );
+                }
+                index = -1;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < values.length;
+        }
+
+        @Override
+        @SuppressWarnings( "unchecked" )
+        public Entry<Long, V> next() {
+            if( !hasNext() ) throw new NoSuchElementException();
+            var entry = new SimpleImmutableEntry<>( keys[index], ( V ) values[index] );
+            advance();
+            return entry;
+        }
+    }
+
+    @SuppressWarnings( "serial" )
+    private static final class Segment<V> extends StampedLock {
+        long[] keys;
+        Object[] values;
+        volatile int size;
+
+        Segment( int capacity ) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        @SuppressWarnings( "unchecked" )
+        private static <V> V find( long[] keys, Object[] values, long key, int hash ) {
+            int mask = keys.length - 1;
+            for( int i = hash & mask, n = 0; n < keys.length; i = ( i + 1 ) & mask, n++ ) {
+                Object value = values[i];
+                if( value == null ) return null;
+                if( keys[i] == key ) return ( V ) value;
+            }
+            return null;
+        }
+
+        V get( long key, int hash ) {
+            long stamp = tryOptimisticRead();
+            if( stamp != 0 ) {
+                long[] keys = this.keys;
+                Object[] values = this.values;
+                if( keys.length == values.length ) {
+                    V value = find( keys, values, key, hash );
+                    if( validate( stamp ) ) return value;
+                }
+            }
+            stamp = readLock();
+            try {
+                return find( keys, values, key, hash );
+            } finally {
+                unlockRead( stamp );
+            }
+        }
+
+        /**
+         * @return slot of the key or the free slot it would occupy
+         */
+        private int slot( long key, int hash ) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while( values[i] != null && keys[i] != key ) i = ( i + 1 ) & mask;
+            return i;
+        }
+
+        @SuppressWarnings( "unchecked" )
+        V put( long key, int hash, V value, boolean onlyIfAbsent ) {
+            long stamp = writeLock();
+            try {
+                int i = slot( key, hash );
+                V old = ( V ) values[i];
+                if( old == null ) insert( i, key, hash, value );
+                else if( !onlyIfAbsent ) values[i] = value;
+                return old;
+            } finally {
+                unlockWrite( stamp );
+            }
+        }
+
+        @SuppressWarnings( "unchecked" )
+        V remove( long key, int hash, Object expected ) {
+            long stamp = writeLock();
+            try {
+                int i = slot( key, hash );
+                V old = ( V ) values[i];
+                if( old == null || expected != null && !expected.equals( old ) ) return null;
+                delete( i );
+                return old;
+            } finally {
+                unlockWrite( stamp );
+            }
+        }
+
+        @SuppressWarnings( "unchecked" )
+        V compute( long key, int hash, BiFunction<? super Long, ? super V, ? extends V> remapping, boolean onlyIfPresent ) {
+            long stamp = writeLock();
+            try {
+                int i = slot( key, hash );
+                V old = ( V ) values[i];
+                if( old == null && onlyIfPresent ) return null;
+                V value = remapping.apply( key, old );
+                if( value == null ) {
+                    if( old != null ) delete( i );
+                } else if( old == null ) insert( i, key, hash, value );
+                else values[i] = value;
+                return value;
+            } finally {
+                unlockWrite( stamp );
+            }
+        }
+
+        void clear() {
+            long stamp = writeLock();
+            try {
+                keys = new long[keys.length];
+                values = new Object[values.length];
+                size = 0;
+            } finally {
+                unlockWrite( stamp );
+            }
+        }
+
+        private void insert( int i, long key, int hash, Object value ) {
+            if( size + 1 > keys.length * LOAD_FACTOR ) {
+                resize();
+                i = slot( key, hash );
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] newKeys = new long[oldKeys.length << 1];
+            Object[] newValues = new Object[oldValues.length << 1];
+            int mask = newKeys.length - 1;
+            for( int j = 0; j < oldKeys.length; j++ ) {
+                if( oldValues[j] == null ) continue;
+                int i = hash( oldKeys[j] ) & mask;
+                while( newValues[i] != null ) i = ( i + 1 ) & mask;
+                newKeys[i] = oldKeys[j];
+                newValues[i] = oldValues[j];
+            }
+            keys = newKeys;
+            values = newValues;
+        }
+
+        /**
+         * Backward shift deletion, keeps probe sequences free of tombstones.
+         */
+        private void delete( int i ) {
+            int mask = keys.length - 1;
+            int j = i;
+            while( true ) {
+                j = ( j + 1 ) & mask;
+                if( values[j] == null ) break;
+                int k = hash( keys[j] ) & mask;
+                boolean reachable = i <= j ? i < k && k <= j : i < k || k <= j;
+                if( !reachable ) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+            size--;
+        }
+    }
+}
@@ -38,7 +38,6 @@ import oap.storage.migration.JsonMetadata;
 import oap.storage.migration.Migration;
 import oap.storage.migration.MigrationException;
 import oap.util.Lists;
-import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
 
 import java.io.Closeable;
@@ -47,6 +46,7 @@ import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
@@ -70,7 +70,7 @@ public class DirectoryPersistence<I, T> implements Closeable {
     public String serviceName;
     protected long fsync;
     private volatile ScheduledExecutorService scheduler;
-    private volatile long lastExecuted = -1;
+    private volatile long lastSeq = -1;
 
     public DirectoryPersistence( Path path, long fsync, int version, List<Migration> migrations, MemoryStorage<I, T> storage ) {
         this( path, plainResolve(), fsync, version, migrations, storage );
@@ -99,6 +99,8 @@ public class DirectoryPersistence<I, T> implements Closeable {
         scheduler = oap.concurrent.Executors.newScheduledThreadPool( 1, serviceName );
         synchronizedOn( lock, () -> {
             this.load();
+            lastSeq = storage.memory.lastSeq();
+            storage.memory.persisted( lastSeq );
             scheduler.scheduleWithFixedDelay( this::fsync, fsync, fsync, TimeUnit.MILLISECONDS );
         } );
     }
@@ -164,12 +166,19 @@ public class DirectoryPersistence<I, T> implements Closeable {
 
     private void fsync() {
         synchronizedOn( lock, () -> {
-            var time = DateTimeUtils.currentTimeMillis();
-
-            log.trace( "fsyncing, last: {}, objects in storage: {}", lastExecuted, storage.size() );
-            storage.memory.selectUpdatedSince( lastExecuted - 1 ).forEach( this::persist );
-
-            lastExecuted = time;
+            log.trace( "fsyncing, last: {}, objects in storage: {}", lastSeq, storage.size() );
+            var failed = new AtomicBoolean();
+            storage.memory.selectChangedAfter( lastSeq ).forEach( ( id, m ) -> {
+                if( failed.get() ) return;
+                try {
+                    persist( id, m );
+                    lastSeq = m.seq;
+                } catch( Exception e ) {
+                    log.error( "cannot persist " + id + ", retrying on next fsync", e );
+                    failed.set( true );
+                }
+            } );
+            storage.memory.persisted( lastSeq );
         } );
     }
 
@@ -179,7 +188,7 @@ public class DirectoryPersistence<I, T> implements Closeable {
         if( metadata.isDeleted() ) {
             log.trace( "delete {}", path );
             Files.delete( path );
-            storage.memory.removePermanently( id );
+            storage.memory.purgeTombstone( id, metadata.seq );
         } else try( OutputStream outputStream = IoStreams.out( path, PLAIN, DEFAULT_BUFFER, false, true ) ) {
             log.trace( "storing {} with modification time {}", path, metadata.modified );
             Binder.json.marshal( outputStream, metadata );
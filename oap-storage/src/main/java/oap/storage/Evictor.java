@@ -0,0 +1,65 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Least recently used order of the ids resident in a bounded {@link MemoryStorage}.
+ */
+class Evictor<I> {
+    final int maximumSize;
+    private final LinkedHashMap<I, Boolean> order = new LinkedHashMap<>( 16, 0.75f, true );
+
+    Evictor( int maximumSize ) {
+        this.maximumSize = maximumSize;
+    }
+
+    synchronized void touch( I id ) {
+        order.put( id, Boolean.TRUE );
+    }
+
+    synchronized void remove( I id ) {
+        order.remove( id );
+    }
+
+    synchronized void clear() {
+        order.clear();
+    }
+
+    /**
+     * @return up to {@code limit} least recently used ids, coldest first
+     */
+    synchronized List<I> coldest( int limit ) {
+        var ids = new ArrayList<I>( Math.min( limit, order.size() ) );
+        for( I id : order.keySet() ) {
+            if( ids.size() >= limit ) break;
+            ids.add( id );
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import oap.concurrent.scheduler.Scheduled;
+import oap.concurrent.scheduler.Scheduler;
+
+import java.io.Closeable;
+
+/**
+ * Periodically deletes objects stored with a ttl, see {@link MemoryStorage#store(Object, long)}.
+ */
+@Slf4j
+public class Expirer<I, T> implements Closeable {
+    private final Scheduled scheduled;
+
+    public Expirer( MemoryStorage<I, T> storage, long interval ) {
+        this.scheduled = Scheduler.scheduleWithFixedDelay( getClass(), interval, i -> {
+            var expired = storage.expire();
+            if( !expired.isEmpty() ) log.trace( "expired {} object(s)", expired.size() );
+        } );
+    }
+
+    @Override
+    public void close() {
+        try {
+            Scheduled.cancel( scheduled );
+        } catch( Exception e ) {
+            log.error( e.getMessage(), e );
+        }
+    }
+}
@@ -39,6 +39,7 @@ import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static java.util.stream.Collectors.toList;
 import static oap.concurrent.Threads.synchronizedOn;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -49,6 +50,7 @@ public class FilePersistence<I, T> implements Closeable {
     private final Logger log;
     private PeriodicScheduled scheduled;
     private final Path path;
+    private volatile long lastSeq = -1;
 
 
     public FilePersistence( Path path, long fsync, MemoryStorage<I, T> storage ) {
@@ -60,7 +62,7 @@ public class FilePersistence<I, T> implements Closeable {
 
     public void preStart() {
         load();
-        this.scheduled = Scheduler.scheduleWithFixedDelay( getClass(), fsync, this::fsync );
+        this.scheduled = Scheduler.scheduleWithFixedDelay( getClass(), fsync, i -> fsync() );
     }
 
     private void load() {
@@ -70,26 +72,36 @@ public class FilePersistence<I, T> implements Closeable {
                 I id = storage.identifier.get( m.object );
                 storage.memory.put( id, m );
             } );
+            lastSeq = storage.memory.lastSeq();
+            storage.memory.persisted( lastSeq );
             log.info( storage.size() + " object(s) loaded." );
         } );
     }
 
     @SneakyThrows
-    private synchronized void fsync( long last ) {
+    private synchronized void fsync() {
         synchronizedOn( lock, () -> {
-            log.trace( "fsync: last: {}, objects in storage: {}", last, storage.size() );
+            log.trace( "fsync: last: {}, objects in storage: {}", lastSeq, storage.size() );
 
-            var updates = storage.memory.selectUpdatedSince( last ).toList();
+            var updates = storage.memory.selectChangedAfter( lastSeq ).toList();
             if( !updates.isEmpty() ) {
-                updates.forEach( p -> {
-                    if( p._2.isDeleted() ) storage.memory.removePermanently( p._1 );
-                } );
-                List<Metadata<T>> ms = storage.memory.selectLive().mapToObj( ( id, m ) -> m ).toList();
+                List<Metadata<T>> ms;
+                try( var snapshot = storage.memory.snapshot() ) {
+                    ms = snapshot.selectAll()
+                        .filter( p -> !p._2.isDeleted() )
+                        .map( p -> p._2 )
+                        .collect( toList() );
+                }
                 log.debug( "fsync storing {} to {}...", ms.size(), path );
 
                 Binder.json.marshal( path, ms );
 
                 log.debug( "fsync storing to {}... done", path );
+                lastSeq = updates.get( updates.size() - 1 )._2.seq;
+                updates.forEach( p -> {
+                    if( p._2.isDeleted() ) storage.memory.purgeTombstone( p._1, p._2.seq );
+                } );
+                storage.memory.persisted( lastSeq );
             }
         } );
     }
@@ -97,7 +109,7 @@ public class FilePersistence<I, T> implements Closeable {
     @Override
     public void close() {
         synchronizedOn( lock, () -> Scheduled.cancel( scheduled ) );
-        fsync( scheduled.lastExecuted() );
+        fsync();
     }
 
     @Override
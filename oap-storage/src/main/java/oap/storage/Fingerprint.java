@@ -0,0 +1,50 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * Strategy of {@link Metadata#hash} computation on every change.
+ * The hash lets a replication slave skip objects it already has, see {@link Metadata#looksUnmodified(Metadata)}.
+ */
+@FunctionalInterface
+public interface Fingerprint<T> {
+    Fingerprint<Object> HASH_CODE = Object::hashCode;
+    /**
+     * No hash at all, slaves rely on sequence cursors only and never skip objects they may already have.
+     * Suits objects which are expensive to hash.
+     */
+    Fingerprint<Object> NONE = object -> 0L;
+
+    /**
+     * Uses a version field maintained by the object itself.
+     */
+    static <T> Fingerprint<T> version( ToLongFunction<T> version ) {
+        return version::applyAsLong;
+    }
+
+    long of( T object );
+}
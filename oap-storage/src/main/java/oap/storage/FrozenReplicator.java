@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import oap.application.ServiceName;
+import oap.concurrent.scheduler.Scheduled;
+import oap.concurrent.scheduler.Scheduler;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+
+/**
+ * Periodically pulls a {@link ReplicationMaster} into a {@link FrozenStorage}, swapping the whole table
+ * only when the master has changed.
+ */
+@Slf4j
+public class FrozenReplicator<I, T> implements Closeable {
+    private final FrozenStorage<I, T> slave;
+    private final ReplicationMaster<I, T> master;
+    @ServiceName
+    public String serviceName = "<unknown>";
+    private Scheduled scheduled;
+
+    public FrozenReplicator( FrozenStorage<I, T> slave, ReplicationMaster<I, T> master, long interval ) {
+        this.slave = slave;
+        this.master = master;
+        this.scheduled = Scheduler.scheduleWithFixedDelay( getClass(), interval, i -> replicate() );
+    }
+
+    public void replicateNow() {
+        log.trace( "[{}] forcing replication...", serviceName );
+        scheduled.triggerNow();
+    }
+
+    public int replicate() {
+        try {
+            return slave.replicate( master );
+        } catch( UncheckedIOException e ) {
+            log.error( "[{}] {}", serviceName, e.getCause().getMessage() );
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        Scheduled.cancel( scheduled );
+    }
+}
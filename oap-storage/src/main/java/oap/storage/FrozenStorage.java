@@ -0,0 +1,348 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import oap.id.Identifier;
+import oap.storage.Storage.DataListener.IdObject;
+import oap.util.Stream;
+import org.joda.time.DateTimeUtils;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.util.stream.Collectors.toList;
+import static oap.storage.Storage.DataListener.IdObject.__io;
+
+/**
+ * Read-only storage for data which is only replaced as a whole, e.g. by {@link FrozenReplicator}.
+ * Objects are kept in an immutable open addressing table, every change builds a new one and publishes it
+ * with a single volatile write. {@link #getOrNull(Object)} is lock-free and allocation-free.
+ */
+@Slf4j
+public class FrozenStorage<I, T> implements Storage<I, T> {
+    public final Identifier<I, T> identifier;
+    private final List<DataListener<I, T>> dataListeners = new CopyOnWriteArrayList<>();
+    private volatile Table<I, T> table = new Table<>( Map.of() );
+    /**
+     * deletions come with the change feed, full id lists are compared after removals the feed misses and
+     * at this interval
+     */
+    public long reconciliationInterval = 60 * 60 * 1000;
+    /**
+     * changes are pulled in pages of this size
+     */
+    public int batchSize = 10_000;
+    private long lastSeq = -1;
+    private long reconciled = Long.MIN_VALUE / 2;
+    /**
+     * {@link ReplicationMaster#purgedSeq()} the last reconciliation covered
+     */
+    private long reconciledPurge = Long.MIN_VALUE;
+
+    public FrozenStorage( Identifier<I, T> identifier ) {
+        this.identifier = identifier;
+    }
+
+    /**
+     * Replaces all objects, listeners are notified of the difference.
+     */
+    public synchronized void swap( @Nonnull Collection<T> objects ) {
+        var next = new LinkedHashMap<I, T>();
+        for( T object : objects ) next.put( identifier.get( object ), object );
+        publish( next, new HashSet<>( next.keySet() ) );
+    }
+
+    /**
+     * Pulls changes from the master and swaps the table if there are any. Removals the change feed misses
+     * are found by comparing ids, as {@link Replicator} does.
+     *
+     * @return number of changed objects
+     */
+    public synchronized int replicate( ReplicationMaster<I, T> master ) {
+        if( !master.sequenced() ) return replicateAll( master );
+
+        var current = table;
+        Map<I, T> next = null;
+        var changed = new HashSet<I>();
+        long last = lastSeq;
+        long cursor = last;
+        long purgedBefore = master.purgedSeq();
+        while( true ) {
+            List<Metadata<T>> page;
+            try( var stream = master.changedAfter( cursor, batchSize ) ) {
+                page = stream.collect( toList() );
+            }
+            if( !page.isEmpty() && next == null ) next = current.toMap();
+            for( var m : page ) {
+                I id = identifier.get( m.object );
+                if( m.isDeleted() ) next.remove( id );
+                else next.put( id, m.object );
+                changed.add( id );
+                cursor = Math.max( cursor, m.seq );
+            }
+            if( page.size() < batchSize ) break;
+        }
+        long purgedAfter = master.purgedSeq();
+
+        long now = DateTimeUtils.currentTimeMillis();
+        if( Math.max( last, reconciledPurge ) < purgedAfter || now - reconciled >= reconciliationInterval ) {
+            reconciled = now;
+            reconciledPurge = purgedBefore;
+            var ids = new HashSet<>( master.ids() );
+            if( next == null ) next = current.toMap();
+            next.keySet().retainAll( ids );
+            if( changed.isEmpty() && next.size() == current.size() ) next = null;
+        }
+        // advanced once the pages are published, a failed pull is repeated
+        lastSeq = cursor;
+        if( next == null ) return 0;
+
+        int published = publish( next, changed );
+        log.trace( "replicated {} change(s), {} object(s)", published, next.size() );
+        return published;
+    }
+
+    /**
+     * Fallback for masters which are not {@link ReplicationMaster#sequenced()}, all objects are pulled.
+     */
+    private int replicateAll( ReplicationMaster<I, T> master ) {
+        var next = new LinkedHashMap<I, T>();
+        try( var stream = master.updatedSince( Long.MIN_VALUE ) ) {
+            stream.forEach( m -> next.put( identifier.get( m.object ), m.object ) );
+        }
+        var current = table;
+        var changed = new HashSet<I>();
+        next.forEach( ( id, object ) -> {
+            if( !object.equals( current.getOrNull( id ) ) ) changed.add( id );
+        } );
+        if( changed.isEmpty() && next.size() == current.size() ) return 0;
+        return publish( next, changed );
+    }
+
+    private int publish( Map<I, T> next, Set<I> changed ) {
+        var previous = table;
+        table = new Table<>( next );
+
+        var added = new ArrayList<IdObject<I, T>>();
+        var updated = new ArrayList<IdObject<I, T>>();
+        var deleted = new ArrayList<IdObject<I, T>>();
+        next.forEach( ( id, object ) -> {
+            if( !changed.contains( id ) ) return;
+            if( previous.getOrNull( id ) == null ) added.add( __io( id, object ) );
+            else updated.add( __io( id, object ) );
+        } );
+        for( int i = 0; i < previous.keys.length; i++ )
+            if( previous.keys[i] != null && !next.containsKey( previous.<I>key( i ) ) )
+                deleted.add( __io( previous.key( i ), previous.value( i ) ) );
+
+        for( var dataListener : dataListeners ) {
+            if( !added.isEmpty() ) dataListener.added( added );
+            if( !updated.isEmpty() ) dataListener.updated( updated );
+            if( !deleted.isEmpty() ) dataListener.deleted( deleted );
+            if( !added.isEmpty() || !updated.isEmpty() || !deleted.isEmpty() )
+                dataListener.changed( added, updated, deleted );
+        }
+        return added.size() + updated.size() + deleted.size();
+    }
+
+    @Override
+    public T getOrNull( @Nonnull I id ) {
+        return table.getOrNull( id );
+    }
+
+    @Override
+    public Optional<T> get( @Nonnull I id ) {
+        return Optional.ofNullable( table.getOrNull( id ) );
+    }
+
+    @Override
+    public T get( I id, @Nonnull Supplier<T> init ) {
+        T object = id != null ? table.getOrNull( id ) : null;
+        if( object == null ) throw new UnsupportedOperationException( "frozen storage" );
+        return object;
+    }
+
+    @Override
+    public Stream<T> select() {
+        return Stream.of( table.values );
+    }
+
+    @Override
+    public List<T> list() {
+        return table.values;
+    }
+
+    @Override
+    public long size() {
+        return table.size();
+    }
+
+    @Override
+    public void forEach( Consumer<? super T> action ) {
+        table.values.forEach( action );
+    }
+
+    @Override
+    @Nonnull
+    public Iterator<T> iterator() {
+        return table.values.iterator();
+    }
+
+    @Override
+    public T store( @Nonnull T object ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public void store( Collection<T> objects ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public Optional<T> update( @Nonnull I id, @Nonnull Function<T, T> update ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public T update( I id, @Nonnull Function<T, T> update, @Nonnull Supplier<T> init ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public List<T> update( @Nonnull Map<I, Function<T, T>> updates ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public Optional<T> delete( @Nonnull I id ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public List<T> delete( @Nonnull Collection<I> ids ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public Optional<T> permanentlyDelete( @Nonnull I id ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public List<T> permanentlyDelete( @Nonnull Collection<I> ids ) {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public void deleteAll() {
+        throw new UnsupportedOperationException( "frozen storage" );
+    }
+
+    @Override
+    public void addDataListener( DataListener<I, T> dataListener ) {
+        dataListeners.add( dataListener );
+    }
+
+    @Override
+    public void removeDataListener( DataListener<I, T> dataListener ) {
+        dataListeners.remove( dataListener );
+    }
+
+    @Override
+    public Identifier<I, T> identifier() {
+        return identifier;
+    }
+
+    /**
+     * Linear probing over parallel arrays at most half full, never modified after construction.
+     */
+    private static final class Table<I, T> {
+        final Object[] keys;
+        final Object[] objects;
+        final List<T> values;
+        private final int mask;
+
+        Table( Map<I, T> data ) {
+            int capacity = Integer.highestOneBit( Math.max( 1, data.size() ) * 2 - 1 ) << 1;
+            keys = new Object[capacity];
+            objects = new Object[capacity];
+            mask = capacity - 1;
+            data.forEach( ( id, object ) -> {
+                int i = slot( id );
+                while( keys[i] != null ) i = ( i + 1 ) & mask;
+                keys[i] = id;
+                objects[i] = object;
+            } );
+            values = List.copyOf( data.values() );
+        }
+
+        private int slot( Object id ) {
+            int h = id.hashCode();
+            return ( h ^ ( h >>> 16 ) ) & mask;
+        }
+
+        @SuppressWarnings( "unchecked" )
+        T getOrNull( Object id ) {
+            for( int i = slot( id ); ; i = ( i + 1 ) & mask ) {
+                Object key = keys[i];
+                if( key == null ) return null;
+                if( key.equals( id ) ) return ( T ) objects[i];
+            }
+        }
+
+        @SuppressWarnings( "unchecked" )
+        <K> K key( int i ) {
+            return ( K ) keys[i];
+        }
+
+        @SuppressWarnings( "unchecked" )
+        T value( int i ) {
+            return ( T ) objects[i];
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        Map<I, T> toMap() {
+            var map = new LinkedHashMap<I, T>();
+            for( int i = 0; i < keys.length; i++ ) if( keys[i] != null ) map.put( key( i ), value( i ) );
+            return map;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Secondary in-memory index over live objects of {@link MemoryStorage}.
+ * It is maintained by the storage memory on every mutation, including the replication apply path,
+ * so lookups by key do not need to scan the whole storage.
+ * <p>
+ * The key of a new version is linked within the same atomic step as the data write and the key of the replaced
+ * version is unlinked only after the new one is published, so a lookup may find an id whose object no longer
+ * matches, which callers filter out, but never misses a matching object.
+ *
+ * @param <I> storage id
+ * @param <T> storage object
+ * @param <K> index key, objects with {@code null} key are not indexed
+ */
+public abstract class Index<I, T, K> {
+    public final String name;
+    protected final Function<T, K> extractor;
+    /**
+     * key of the latest staged version, objects may be changed in place, so the key cannot be extracted again
+     */
+    private final ConcurrentMap<I, K> keys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<K, Set<I>> ids = new ConcurrentHashMap<>();
+
+    protected Index( String name, Function<T, K> extractor ) {
+        this.name = name;
+        this.extractor = extractor;
+    }
+
+    /**
+     * Links the key of the version being written, called within the data write of the id.
+     *
+     * @param object null if the object is deleted or removed
+     * @return the replaced key to {@link #settle(Object, Object)} once the version is published, null if none
+     */
+    K stage( I id, T object ) {
+        K key = object != null ? extractor.apply( object ) : null;
+        K old = key == null ? keys.remove( id ) : keys.put( id, key );
+        if( Objects.equals( old, key ) ) return null;
+        if( key != null ) link( key, id );
+        return old;
+    }
+
+    /**
+     * Unlinks the replaced key unless a later version of the object has it again.
+     */
+    void settle( I id, K old ) {
+        if( old == null ) return;
+        keys.compute( id, ( anId, current ) -> {
+            if( !Objects.equals( current, old ) ) unlink( old, id );
+            return current;
+        } );
+    }
+
+    void clear() {
+        keys.clear();
+        ids.clear();
+    }
+
+    boolean matches( T object, K key ) {
+        return Objects.equals( extractor.apply( object ), key );
+    }
+
+    Set<I> holders( K key ) {
+        Set<I> set = ids.get( key );
+        return set == null ? Set.of() : Collections.unmodifiableSet( set );
+    }
+
+    private void link( K key, I id ) {
+        ids.compute( key, ( k, set ) -> {
+            if( set == null ) set = ConcurrentHashMap.newKeySet();
+            set.add( id );
+            return set;
+        } );
+    }
+
+    private void unlink( K key, I id ) {
+        ids.computeIfPresent( key, ( k, set ) -> {
+            set.remove( id );
+            return set.isEmpty() ? null : set;
+        } );
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + name + ")";
+    }
+
+    /**
+     * Index of a key expected to be unique. Objects sharing a key are all kept, so removing one of them
+     * does not hide the others, {@link #get(Object)} returns any of them.
+     */
+    public static class Unique<I, T, K> extends Index<I, T, K> {
+        public Unique( String name, Function<T, K> extractor ) {
+            super( name, extractor );
+        }
+
+        public Optional<I> get( K key ) {
+            var holders = holders( key );
+            return holders.isEmpty() ? Optional.empty() : holders.stream().findAny();
+        }
+    }
+
+    public static class Multi<I, T, K> extends Index<I, T, K> {
+        public Multi( String name, Function<T, K> extractor ) {
+            super( name, extractor );
+        }
+
+        public Set<I> get( K key ) {
+            return holders( key );
+        }
+    }
+}
@@ -36,8 +36,11 @@ import oap.util.Stream;
 import javax.annotation.Nonnull;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 
 @Slf4j
 public class LazyFileStorage<T> extends MemoryStorage<String, T> implements AutoCloseable {
@@ -79,6 +82,24 @@ public class LazyFileStorage<T> extends MemoryStorage<String, T> implements Auto
         return super.delete( id );
     }
 
+    @Override
+    public List<T> delete( @Nonnull Collection<String> ids ) {
+        open();
+        return super.delete( ids );
+    }
+
+    @Override
+    public List<T> permanentlyDelete( @Nonnull Collection<String> ids ) {
+        open();
+        return super.permanentlyDelete( ids );
+    }
+
+    @Override
+    public List<T> update( @Nonnull Map<String, Function<T, T>> updates ) {
+        open();
+        return super.update( updates );
+    }
+
     private synchronized void open() {
         if( size() > 0 ) return;
         Files.ensureFile( path );
@@ -0,0 +1,66 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.id.Identifier;
+import org.joda.time.DateTimeUtils;
+
+import java.util.Optional;
+
+/**
+ * {@link MemoryStorage} of long ids backed by {@link ConcurrentLongHashMap}: no boxed key and map node per object,
+ * and {@link #getOrNull(long)} does not box the id unless the storage is bounded or metered.
+ */
+public class LongMemoryStorage<T> extends MemoryStorage<Long, T> {
+    private final ConcurrentLongHashMap<Metadata<T>> data;
+
+    public LongMemoryStorage( Identifier<Long, T> identifier, Lock lock ) {
+        this( identifier, lock, Fingerprint.HASH_CODE );
+    }
+
+    public LongMemoryStorage( Identifier<Long, T> identifier, Lock lock, Fingerprint<? super T> fingerprint ) {
+        this( identifier, lock, fingerprint, new ConcurrentLongHashMap<>() );
+    }
+
+    private LongMemoryStorage( Identifier<Long, T> identifier, Lock lock, Fingerprint<? super T> fingerprint,
+                               ConcurrentLongHashMap<Metadata<T>> data ) {
+        super( identifier, lock, new Memory<>( lock, fingerprint, data ) );
+        this.data = data;
+    }
+
+    public Optional<T> get( long id ) {
+        return Optional.ofNullable( getOrNull( id ) );
+    }
+
+    /**
+     * Same as {@link #getOrNull(Object)}, allocation-free.
+     */
+    public T getOrNull( long id ) {
+        // read-through, eviction and timers work with boxed ids
+        if( memory.bounded() || metered() ) return getOrNull( Long.valueOf( id ) );
+        Metadata<T> m = data.get( id );
+        return m != null && Memory.live( m, DateTimeUtils.currentTimeMillis() ) ? m.object : null;
+    }
+}
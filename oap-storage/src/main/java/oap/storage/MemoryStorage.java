@@ -23,6 +23,7 @@
  */
 package oap.storage;
 
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import oap.id.Identifier;
 import oap.storage.Storage.DataListener.IdObject;
@@ -30,36 +31,102 @@ import oap.util.BiStream;
 import oap.util.Lists;
 import oap.util.Pair;
 import oap.util.Stream;
+import org.joda.time.DateTimeUtils;
 
 import javax.annotation.Nonnull;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
 import static oap.storage.Storage.DataListener.IdObject.__io;
+import static oap.util.Pair.__;
 
 @Slf4j
 public class MemoryStorage<I, T> implements Storage<I, T>, ReplicationMaster<I, T> {
     public final Identifier<I, T> identifier;
-    protected final Lock lock;
     protected final List<DataListener<I, T>> dataListeners = new CopyOnWriteArrayList<>();
     protected final Memory<T, I> memory;
     private final Predicate<I> conflict = Identifier.toConflict( this::get );
+    protected final Lock lock;
+    private StorageTimers timers;
+    private volatile ReadThrough<I, T> readThrough;
+    private volatile ReplicationCodec<T> replicationCodec;
+    /**
+     * slaves waiting in {@link #awaitChangedAfter(long, long)}, writers notify only if there are any
+     */
+    private final AtomicInteger changeWaiters = new AtomicInteger();
+    /**
+     * Map size above which {@link #count(Predicate)} and {@link #aggregate(Function, BinaryOperator)} run in parallel.
+     */
+    public long parallelismThreshold = 10_000;
 
     public MemoryStorage( Identifier<I, T> identifier, Lock lock ) {
+        this( identifier, lock, Fingerprint.HASH_CODE );
+    }
+
+    public MemoryStorage( Identifier<I, T> identifier, Lock lock, Fingerprint<? super T> fingerprint ) {
+        this( identifier, lock, new Memory<>( lock, fingerprint ) );
+    }
+
+    protected MemoryStorage( Identifier<I, T> identifier, Lock lock, Memory<T, I> memory ) {
         this.identifier = identifier;
         this.lock = lock;
-        this.memory = new Memory<>( lock );
+        this.memory = memory;
+    }
+
+    /**
+     * Enables {@link StorageTimers}: operation latencies and listener dispatch time. Lock wait is recorded
+     * by creating the storage with a {@link Lock.TimedLock} over {@link StorageTimers#lockWait(String)}.
+     * Must be called before the storage is used.
+     */
+    public MemoryStorage<I, T> withMetrics( String storageName ) {
+        this.timers = new StorageTimers( storageName );
+        return this;
+    }
+
+    boolean metered() {
+        return timers != null;
+    }
+
+    /**
+     * Single object operations check {@link #timers} before calling it, so an unmetered storage
+     * does not allocate the capturing lambda.
+     */
+    private <R> R timed( Function<StorageTimers, Timer> timer, Supplier<R> run ) {
+        var timers = this.timers;
+        return timers == null ? run.get() : timer.apply( timers ).record( run );
+    }
+
+    private void timed( Function<StorageTimers, Timer> timer, Runnable run ) {
+        var timers = this.timers;
+        if( timers == null ) run.run();
+        else timer.apply( timers ).record( run );
     }
 
     public Stream<T> select( boolean liveOnly ) {
@@ -74,21 +141,103 @@ public class MemoryStorage<I, T> implements Storage<I, T>, ReplicationMaster<I,
         return memory.selectAll().map( p -> p._2.object );
     }
 
+    /**
+     * Parallel unordered stream of live objects, splits over the underlying map.
+     */
+    public java.util.stream.Stream<T> parallelSelect() {
+        long now = DateTimeUtils.currentTimeMillis();
+        return memory.data.values().parallelStream().unordered()
+            .filter( m -> Memory.live( m, now ) )
+            .map( m -> m.object );
+    }
+
+    /**
+     * Counts live objects matching the predicate in parallel.
+     */
+    @SuppressWarnings( "unchecked" )
+    public long count( @Nonnull Predicate<? super T> predicate ) {
+        if( memory.data instanceof ConcurrentHashMap<?, ?> ) {
+            var chm = ( ConcurrentHashMap<I, Metadata<T>> ) memory.data;
+            long now = DateTimeUtils.currentTimeMillis();
+            return timed( t -> t.select, () -> chm.reduceValuesToLong( parallelismThreshold,
+                m -> Memory.live( m, now ) && predicate.test( m.object ) ? 1L : 0L, 0L, Long::sum ) );
+        }
+        return timed( t -> t.select, () -> parallelSelect().filter( predicate ).count() );
+    }
+
+    /**
+     * Finds up to {@code limit} live objects matching the predicate in parallel, in no particular order.
+     */
+    public List<T> find( @Nonnull Predicate<? super T> predicate, int limit ) {
+        return timed( t -> t.select, () -> parallelSelect().filter( predicate ).limit( limit ).collect( toList() ) );
+    }
+
+    /**
+     * Maps live objects and reduces the results in parallel, objects mapped to null are skipped.
+     *
+     * @param reducer associative function
+     * @return empty if there are no results
+     */
+    @SuppressWarnings( "unchecked" )
+    public <R> Optional<R> aggregate( @Nonnull Function<? super T, ? extends R> mapper, @Nonnull BinaryOperator<R> reducer ) {
+        if( memory.data instanceof ConcurrentHashMap<?, ?> ) {
+            var chm = ( ConcurrentHashMap<I, Metadata<T>> ) memory.data;
+            long now = DateTimeUtils.currentTimeMillis();
+            return timed( t -> t.select, () -> Optional.ofNullable( chm.reduceValues( parallelismThreshold,
+                m -> Memory.live( m, now ) ? mapper.apply( m.object ) : null, reducer ) ) );
+        }
+        return timed( t -> t.select, () -> parallelSelect()
+            .<R>map( mapper )
+            .filter( Objects::nonNull )
+            .reduce( reducer ) );
+    }
+
     @Override
     public List<T> list() {
-        return select().toList();
+        return timed( t -> t.select, () -> select().toList() );
     }
 
     @Override
     public T store( @Nonnull T object ) {
+        return store( object, -1, false );
+    }
+
+    /**
+     * Stores the object to be deleted by {@link #expire()} once {@code ttl} milliseconds pass.
+     * Later stores and updates without ttl keep the expiration of the object until it expires.
+     */
+    public T store( @Nonnull T object, long ttl ) {
+        return store( object, DateTimeUtils.currentTimeMillis() + ttl, true );
+    }
+
+    private T store( T object, long expires, boolean expiring ) {
 //        this is not thread-safe
 //        new acquired id does not lead to conflicts
         I id = identifier.getOrInit( object, conflict );
+        if( timers == null ) put( id, object, expires, expiring );
+        else timed( t -> t.store, () -> put( id, object, expires, expiring ) );
+        return object;
+    }
+
+    private void put( I id, T object, long expires, boolean expiring ) {
         lock.synchronizedOn( id, () -> {
-            if( memory.put( id, object ) ) fireAdded( id, object );
+            if( expiring ? memory.put( id, object, expires ) : memory.put( id, object ) ) fireAdded( id, object );
             else fireUpdated( id, object );
         } );
-        return object;
+    }
+
+    /**
+     * Deletes objects whose ttl has passed, listeners are notified once. The cost depends on the number
+     * of expired objects only, see {@link Expirer} for periodic expiration.
+     *
+     * @return expired objects
+     */
+    public List<T> expire() {
+        List<IdObject<I, T>> expired = new ArrayList<>();
+        timed( t -> t.delete, () -> memory.expire( DateTimeUtils.currentTimeMillis(),
+            ( id, m ) -> expired.add( __io( id, m.object ) ) ) );
+        fireDeleted( expired );
+        return Lists.map( expired, IdObject::object );
     }
 
     @Override
@@ -96,13 +245,15 @@ public class MemoryStorage<I, T> implements Storage<I, T>, ReplicationMaster<I,
         List<IdObject<I, T>> added = new ArrayList<>();
         List<IdObject<I, T>> updated = new ArrayList<>();
 
-        for( T object : objects ) {
-            I id = identifier.getOrInit( object, conflict );
-            lock.synchronizedOn( id, () -> {
-                if( memory.put( id, object ) ) added.add( __io( id, object ) );
-                else updated.add( __io( id, object ) );
-            } );
-        }
+        timed( t -> t.store, () -> {
+            for( T object : objects ) {
+                I id = identifier.getOrInit( object, conflict );
+                lock.synchronizedOn( id, () -> {
+                    if( memory.put( id, object ) ) added.add( __io( id, object ) );
+                    else updated.add( __io( id, object ) );
+                } );
+            }
+        } );
         fireAdded( added );
         fireUpdated( updated );
     }
@@ -110,7 +261,9 @@ public class MemoryStorage<I, T> implements Storage<I, T>, ReplicationMaster<I,
     @Override
     public Optional<T> update( @Nonnull I id, @Nonnull Function<T, T> update ) {
         requireNonNull( id );
-        Optional<Metadata<T>> result = memory.remap( id, update );
+        readThrough( id );
+        Optional<Metadata<T>> result = timers == null ? memory.remap( id, update )
+            : timed( t -> t.update, () -> memory.remap( id, update ) );
         result.ifPresent( m -> fireUpdated( id, m.object ) );
         return result.map( m -> m.object );
     }
@@ -118,86 +271,195 @@ public class MemoryStorage<I, T> implements Storage<I, T>, ReplicationMaster<I,
     @Override
     public T update( I id, @Nonnull Function<T, T> update, @Nonnull Supplier<T> init ) {
         if( id == null ) return store( init.get() );
-        else return lock.synchronizedOn( id, () -> update( id, update ).orElseGet( () -> store( init.get() ) ) );
+        else return getOrCreate( id, () -> update( id, update ), init );
+    }
+
+    /**
+     * The created object is stored under the lock of {@code id} if it has this id, otherwise once the lock
+     * is released: locks of different ids are never nested, see {@link Lock.StripedLock}.
+     */
+    private T getOrCreate( I id, Supplier<Optional<T>> existing, Supplier<T> init ) {
+        var foreign = new AtomicReference<T>();
+        T result = lock.synchronizedOn( id, () -> existing.get().orElseGet( () -> {
+            T created = init.get();
+            if( id.equals( identifier.getOrInit( created, conflict ) ) ) return store( created );
+            foreign.set( created );
+            return null;
+        } ) );
+        return result != null ? result : store( foreign.get() );
+    }
+
+    @Override
+    public List<T> update( @Nonnull Map<I, Function<T, T>> updates ) {
+        List<IdObject<I, T>> updated = new ArrayList<>();
+        timed( t -> t.update, () -> updates.forEach( ( id, update ) -> {
+            readThrough( requireNonNull( id ) );
+            memory.remap( id, update ).ifPresent( m -> updated.add( __io( id, m.object ) ) );
+        } ) );
+        fireUpdated( updated );
+        return Lists.map( updated, IdObject::object );
     }
 
     @Override
     public Optional<T> get( @Nonnull I id ) {
-        return memory.get( id ).map( m -> m.object );
+        return Optional.ofNullable( getOrNull( id ) );
+    }
+
+    @Override
+    public T getOrNull( @Nonnull I id ) {
+        var m = getMetadata( id );
+        return m != null ? m.object : null;
+    }
+
+    /**
+     * Allocation-free lookup. Metadata is copied on write, so the returned instance is never changed
+     * by the storage, but it must not be changed by the caller either.
+     *
+     * @return live metadata or null if the object is absent, deleted or expired
+     */
+    public Metadata<T> getMetadata( @Nonnull I id ) {
+        return timers == null ? lookup( id ) : timed( t -> t.get, () -> lookup( id ) );
+    }
+
+    private Metadata<T> lookup( I id ) {
+        readThrough( id );
+        return memory.getOrNull( id );
+    }
+
+    /**
+     * @return snapshot of the object with its {@link Metadata#seq} as a version for {@link #compareAndSet(Object, long, Object)}
+     */
+    public Optional<Metadata<T>> getVersioned( @Nonnull I id ) {
+        readThrough( id );
+        return memory.get( id ).map( m -> m.snapshot( m.seq ) );
+    }
+
+    /**
+     * Optimistic update, does not take {@link Storage.Lock}.
+     *
+     * @param expectedVersion {@link Metadata#seq} of the object the new one is derived from
+     * @return false if the object is absent, deleted or has been changed since {@code expectedVersion}
+     */
+    public boolean compareAndSet( @Nonnull I id, long expectedVersion, @Nonnull T object ) {
+        requireNonNull( id );
+        requireNonNull( object );
+        readThrough( id );
+        boolean swapped = timers == null ? memory.replace( id, expectedVersion, object )
+            : this.<Boolean>timed( t -> t.update, () -> memory.replace( id, expectedVersion, object ) );
+        if( swapped ) fireUpdated( id, object );
+        return swapped;
     }
 
     @Override
     public T get( I id, @Nonnull Supplier<T> init ) {
-        return id == null ? store( init.get() )
-            : lock.synchronizedOn( id, () -> get( id ).orElseGet( () -> store( init.get() ) ) );
+        return id == null ? store( init.get() ) : getOrCreate( id, () -> get( id ), init );
     }
 
     @Override
     public void deleteAll() {
-        fireDeleted( Lists.map( memory.markDeletedAll(), p -> __io( p._1, p._2.object ) ) );
+        List<Pair<I, Metadata<T>>> deleted = timed( t -> t.delete, memory::markDeletedAll );
+        fireDeleted( Lists.map( deleted, p -> __io( p._1, p._2.object ) ) );
     }
 
     @Override
     public Optional<T> delete( @Nonnull I id ) {
         requireNonNull( id );
-        Optional<T> old = memory.markDeleted( id ).map( m -> m.object );
+        readThrough( id );
+        Optional<Metadata<T>> deleted = timers == null ? memory.markDeleted( id )
+            : timed( t -> t.delete, () -> memory.markDeleted( id ) );
+        Optional<T> old = deleted.map( m -> m.object );
         old.ifPresent( o -> fireDeleted( id, o ) );
         return old;
     }
 
+    @Override
+    public List<T> delete( @Nonnull Collection<I> ids ) {
+        List<IdObject<I, T>> deleted = new ArrayList<>();
+        timed( t -> t.delete, () -> {
+            for( I id : ids ) {
+                readThrough( requireNonNull( id ) );
+                memory.markDeleted( id ).ifPresent( m -> deleted.add( __io( id, m.object ) ) );
+            }
+        } );
+        fireDeleted( deleted );
+        return Lists.map( deleted, IdObject::object );
+    }
+
+    @Override
+    public List<T> permanentlyDelete( @Nonnull Collection<I> ids ) {
+        List<IdObject<I, T>> deleted = new ArrayList<>();
+        timed( t -> t.delete, () -> {
+            for( I id : ids ) {
+                readThrough( requireNonNull( id ) );
+                memory.removePermanently( id ).ifPresent( m -> deleted.add( __io( id, m.object ) ) );
+            }
+        } );
+        firePermanentlyDeleted( deleted );
+        return Lists.map( deleted, IdObject::object );
+    }
+
     @Override
     public Optional<T> permanentlyDelete( @Nonnull I id ) {
         requireNonNull( id );
-        Optional<T> old = memory.removePermanently( id ).map( m -> m.object );
+        readThrough( id );
+        Optional<Metadata<T>> removed = timers == null ? memory.removePermanently( id )
+            : timed( t -> t.delete, () -> memory.removePermanently( id ) );
+        Optional<T> old = removed.map( m -> m.object );
         old.ifPresent( o -> firePermanentlyDeleted( id, o ) );
         return old;
     }
 
     @Override
     public long size() {
-        return memory.selectLiveIds().count();
+        return memory.size();
     }
 
     protected void fireAdded( I id, T object ) {
-        for( DataListener<I, T> dataListener : this.dataListeners )
-            dataListener.added( List.of( __io( id, object ) ) );
+        dispatch( l -> l.added( List.of( __io( id, object ) ) ) );
     }
 
     protected void fireAdded( List<IdObject<I, T>> objects ) {
-        if( !objects.isEmpty() )
-            for( DataListener<I, T> dataListener : this.dataListeners ) dataListener.added( objects );
+        if( !objects.isEmpty() ) dispatch( l -> l.added( objects ) );
     }
 
     protected void fireUpdated( I id, T object ) {
-        for( DataListener<I, T> dataListener : this.dataListeners )
-            dataListener.updated( List.of( __io( id, object ) ) );
+        dispatch( l -> l.updated( List.of( __io( id, object ) ) ) );
     }
 
     protected void fireUpdated( List<IdObject<I, T>> objects ) {
-        if( !objects.isEmpty() )
-            for( DataListener<I, T> dataListener : this.dataListeners ) dataListener.updated( objects );
+        if( !objects.isEmpty() ) dispatch( l -> l.updated( objects ) );
     }
 
     protected void fireDeleted( List<IdObject<I, T>> objects ) {
-        if( !objects.isEmpty() )
-            for( DataListener<I, T> dataListener : this.dataListeners ) dataListener.deleted( objects );
+        if( !objects.isEmpty() ) dispatch( l -> l.deleted( objects ) );
     }
 
     protected void fireDeleted( I id, T object ) {
-        for( DataListener<I, T> dataListener : this.dataListeners )
-            dataListener.deleted( List.of( __io( id, object ) ) );
+        dispatch( l -> l.deleted( List.of( __io( id, object ) ) ) );
     }
 
     protected void firePermanentlyDeleted( I id, T object ) {
-        for( DataListener<I, T> dataListener : this.dataListeners )
-            dataListener.permanentlyDeleted( __io( id, object ) );
+        dispatch( l -> l.permanentlyDeleted( __io( id, object ) ) );
+    }
+
+    protected void firePermanentlyDeleted( List<IdObject<I, T>> objects ) {
+        if( !objects.isEmpty() ) dispatch( l -> l.permanentlyDeleted( objects ) );
     }
 
     protected void fireChanged( List<DataListener.IdObject<I, T>> added,
                                 List<DataListener.IdObject<I, T>> updated,
                                 List<DataListener.IdObject<I, T>> deleted ) {
+        dispatch( l -> l.changed( added, updated, deleted ) );
+    }
+
+    private void dispatch( Consumer<DataListener<I, T>> event ) {
+        if( changeWaiters.get() > 0 ) synchronized( changeWaiters ) {
+            changeWaiters.notifyAll();
+        }
+        var timers = this.timers;
         for( DataListener<I, T> dataListener : this.dataListeners )
-            dataListener.changed( added, updated, deleted );
+            if( timers == null ) event.accept( dataListener );
+            else timers.listener( dataListener ).record( () -> event.accept( dataListener ) );
     }
 
     @Override
@@ -223,7 +485,7 @@ public class MemoryStorage<I, T> implements Storage<I, T>, ReplicationMaster<I,
 
     @Override
     public void forEach( Consumer<? super T> action ) {
-        select().forEach( action );
+        timed( t -> t.select, () -> select().forEach( action ) );
     }
 
     @Override
@@ -234,90 +496,935 @@ public class MemoryStorage<I, T> implements Storage<I, T>, ReplicationMaster<I,
             .filter( m -> m.modified >= since );
     }
 
+    @Override
+    public Stream<Metadata<T>> updatedAfter( long seq ) {
+        checkMaster();
+        log.trace( "requested updated objects after seq={}, total objects={}", seq, memory.data.size() );
+        return memory.selectChangedAfter( seq )
+            .filter( ( id, m ) -> !m.isDeleted() )
+            .mapToObj( ( id, m ) -> m );
+    }
+
+    @Override
+    public Stream<Metadata<T>> changedAfter( long seq ) {
+        checkMaster();
+        log.trace( "requested changes after seq={}, total objects={}", seq, memory.data.size() );
+        return memory.selectChangedAfter( seq ).mapToObj( ( id, m ) -> m );
+    }
+
+    @Override
+    public Stream<Metadata<T>> changedAfter( long seq, int limit ) {
+        checkMaster();
+        log.trace( "requested {} changes after seq={}, total objects={}", limit, seq, memory.data.size() );
+        return memory.selectChangedAfter( seq, limit ).mapToObj( ( id, m ) -> m );
+    }
+
+    @Override
+    public byte[] changedAfterEncoded( long seq, int limit ) {
+        checkMaster();
+        var codec = this.replicationCodec;
+        if( codec == null ) return null;
+        return codec.encode( memory.selectChangedAfter( seq, limit ).mapToObj( ( id, m ) -> m ).toList() );
+    }
+
+    @Override
+    public boolean sequenced() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsPush() {
+        return true;
+    }
+
+    @Override
+    public long awaitChangedAfter( long seq, long timeout ) {
+        long deadline = System.currentTimeMillis() + timeout;
+        changeWaiters.incrementAndGet();
+        try {
+            synchronized( changeWaiters ) {
+                long last;
+                while( ( last = memory.lastSeq() ) <= seq ) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if( remaining <= 0 ) return last;
+                    changeWaiters.wait( remaining );
+                }
+                return last;
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return memory.lastSeq();
+        } finally {
+            changeWaiters.decrementAndGet();
+        }
+    }
+
+    @Override
+    public long purgedSeq() {
+        return memory.purgedSeq();
+    }
+
     @Override
     public List<I> ids() {
+        checkMaster();
         return memory.selectLiveIds().toList();
     }
 
+    /**
+     * A slave reconciles with {@link #ids()} and would remove the objects evicted from a bounded memory.
+     */
+    private void checkMaster() {
+        if( memory.bounded() )
+            throw new IllegalStateException( "bounded storage cannot be a replication master, evicted objects would be removed from slaves" );
+    }
+
+    /**
+     * Opens a point-in-time view which does not block writers, see {@link Snapshot}.
+     */
+    public Snapshot<I, T> snapshot() {
+        return memory.snapshot();
+    }
+
+    public <K> Index.Unique<I, T, K> createUniqueIndex( String name, Function<T, K> extractor ) {
+        return memory.addIndex( new Index.Unique<>( name, extractor ) );
+    }
+
+    public <K> Index.Multi<I, T, K> createIndex( String name, Function<T, K> extractor ) {
+        return memory.addIndex( new Index.Multi<>( name, extractor ) );
+    }
+
+    /**
+     * Bounds the number of objects in memory, least recently used ones are evicted once they are persisted,
+     * see {@link Memory#persisted(long)}. Evicted objects are fetched back through {@link #setReadThrough(ReadThrough)}
+     * on access by id. {@link #select()}, {@link #size()} and indexes cover resident objects only, a bounded storage
+     * cannot be a {@link ReplicationMaster}.
+     *
+     * @param maximumSize 0 makes the storage unbounded
+     */
+    public void setMaximumSize( int maximumSize ) {
+        memory.setMaximumSize( maximumSize );
+    }
+
+    public void setReadThrough( ReadThrough<I, T> readThrough ) {
+        this.readThrough = readThrough;
+    }
+
+    /**
+     * Enables {@link #changedAfterEncoded(long, int)} for slaves replicating with the same codec.
+     */
+    public void setReplicationCodec( ReplicationCodec<T> replicationCodec ) {
+        this.replicationCodec = replicationCodec;
+    }
+
+    /**
+     * Bounds the change index to the latest {@code changeLogLimit} changes. Slaves and persistence further
+     * behind find older changes by a scan of all objects.
+     */
+    public void setChangeLogLimit( int changeLogLimit ) {
+        memory.setChangeLogLimit( changeLogLimit );
+    }
+
+    private void readThrough( I id ) {
+        var readThrough = this.readThrough;
+        if( readThrough == null || !memory.bounded() || memory.data.containsKey( id ) || memory.missing( id ) ) return;
+        lock.synchronizedOn( id, () -> {
+            if( memory.data.containsKey( id ) ) return;
+            var fetched = readThrough.fetch( id );
+            if( fetched.isPresent() ) memory.load( id, fetched.get() );
+            else memory.missed( id );
+        } );
+    }
+
+    /**
+     * Enables incremental estimation of the objects footprint, see {@link Memory#bytes()}.
+     */
+    public void setSizer( Sizer<? super T> sizer ) {
+        memory.setSizer( sizer );
+    }
+
+    public void dropIndex( Index<I, T, ?> index ) {
+        memory.removeIndex( index );
+    }
+
+    public <K> Optional<T> getBy( Index.Unique<I, T, K> index, K key ) {
+        for( I id : index.holders( key ) ) {
+            T object = getOrNull( id );
+            if( object != null && index.matches( object, key ) ) return Optional.of( object );
+        }
+        return Optional.empty();
+    }
+
+    public <K> Stream<T> selectBy( Index.Multi<I, T, K> index, K key ) {
+        return Stream.of( index.holders( key ) )
+            .flatMap( id -> get( id ).stream() )
+            .filter( object -> index.matches( object, key ) );
+    }
+
     protected static class Memory<T, I> {
-        final ConcurrentMap<I, Metadata<T>> data = new ConcurrentHashMap<>();
+        private static final int MISSES = 10_000;
+        final ConcurrentMap<I, Metadata<T>> data;
+        /**
+         * replaced as a whole, so a write stages and settles the same indexes
+         */
+        private volatile List<Index<I, T, ?>> indexes = List.of();
+        private final AtomicLong live = new AtomicLong();
+        private final AtomicLong tombstones = new AtomicLong();
+        /**
+         * ids ordered by {@link Metadata#seq}, the latest {@link #changeLogLimit} changes only, so the index does
+         * not cost memory per object
+         */
+        private final ConcurrentSkipListMap<Long, I> changes = new ConcurrentSkipListMap<>();
+        private final AtomicInteger changeCount = new AtomicInteger();
+        private volatile int changeLogLimit = 65_536;
+        /**
+         * changes up to this sequence number may be missing from the change index, they are found by a scan
+         */
+        private final AtomicLong trimmedSeq = new AtomicLong( Long.MIN_VALUE );
+        /**
+         * Seeded from the clock, so a restarted master continues above the sequence numbers its slaves have seen.
+         */
+        private final AtomicLong seq = new AtomicLong( DateTimeUtils.currentTimeMillis() << 20 );
+        /**
+         * Every sequence number up to it is in the change index or was consumed without a change. Writers assign
+         * and publish numbers concurrently, readers of the index stop here, so they never skip a number which
+         * is assigned but not in the index yet.
+         */
+        private final AtomicLong published = new AtomicLong( seq.get() );
+        /**
+         * numbers published ahead of {@link #published}
+         */
+        private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+        /**
+         * Removals which left no tombstone in the change feed happened up to this sequence number. Starts at the
+         * seed, as removals before a restart are unknown.
+         */
+        private final AtomicLong purgedSeq = new AtomicLong( seq.get() );
         private final Lock lock;
+        private final Fingerprint<? super T> fingerprint;
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile Sizer<? super T> sizer;
+        private volatile Evictor<I> evictor;
+        /**
+         * ids the backing store of a bounded memory had no object for, forgotten on writes of the id
+         * or all at once when full
+         */
+        private volatile Set<I> misses;
+        /**
+         * changes up to this sequence number are persisted, objects not changed since are evictable
+         */
+        private volatile long persistedSeq = 0;
+        private volatile boolean persistent = false;
+        /**
+         * ids of tombstones ordered by {@link Metadata#seq} of their deletion
+         */
+        private final ConcurrentSkipListMap<Long, I> graveyard = new ConcurrentSkipListMap<>();
+        final List<Snapshot<I, T>> snapshots = new CopyOnWriteArrayList<>();
+        /**
+         * the oldest seq of the snapshots closed while others were open, versions changed after it are linked
+         * to their previous ones until the last snapshot is closed
+         */
+        private final AtomicLong oldestSnapshotSeq = new AtomicLong( Long.MAX_VALUE );
+        /**
+         * ids by expiration time, entries of objects which have been changed since are skipped on expiration
+         */
+        private final ConcurrentSkipListMap<Long, List<I>> expirations = new ConcurrentSkipListMap<>();
 
         public Memory( Lock lock ) {
+            this( lock, Fingerprint.HASH_CODE );
+        }
+
+        public Memory( Lock lock, Fingerprint<? super T> fingerprint ) {
+            this( lock, fingerprint, new ConcurrentHashMap<>() );
+        }
+
+        /**
+         * @param data must support atomic {@code compute} and {@code computeIfPresent}
+         */
+        public Memory( Lock lock, Fingerprint<? super T> fingerprint, ConcurrentMap<I, Metadata<T>> data ) {
             this.lock = lock;
+            this.fingerprint = fingerprint;
+            this.data = data;
         }
 
+        /**
+         * Objects neither deleted nor expired, including the ones not swept by {@link #expire(long, BiConsumer)} yet.
+         */
         public BiStream<I, Metadata<T>> selectLive() {
-            return BiStream.of( data ).filter( ( id, m ) -> !m.isDeleted() );
+            long now = DateTimeUtils.currentTimeMillis();
+            return BiStream.of( data ).filter( ( id, m ) -> live( m, now ) );
+        }
+
+        static boolean live( Metadata<?> m, long now ) {
+            return !m.isDeleted() && !m.isExpired( now );
         }
 
         public BiStream<I, Metadata<T>> selectAll() {
             return BiStream.of( data );
         }
 
+        /**
+         * Scans all objects, including deleted ones. Change feeds should use {@link #selectChangedAfter(long)},
+         * which costs as much as the number of changed objects only.
+         */
         public BiStream<I, Metadata<T>> selectUpdatedSince( long since ) {
             return BiStream.of( data ).filter( ( id, m ) -> m.modified > since );
         }
 
+        /**
+         * Walks the change index after {@code seq}, so the cost depends on the number of changed objects only.
+         * Returns snapshots in sequence order, including deleted ones. The walk stops at the first number not
+         * {@link #published} and at the first change which is not visible in the data yet, so the
+         * {@link Metadata#seq} of the last snapshot is a safe cursor for the next call.
+         */
+        public BiStream<I, Metadata<T>> selectChangedAfter( long seq ) {
+            return selectChangedAfter( seq, Integer.MAX_VALUE );
+        }
+
+        public BiStream<I, Metadata<T>> selectChangedAfter( long seq, int limit ) {
+            var changed = new LinkedHashMap<I, Metadata<T>>();
+            long published = this.published.get();
+            if( seq >= published ) return BiStream.of( changed );
+            long from = seq;
+            long trimmed = trimmedSeq.get();
+            if( seq < trimmed ) {
+                for( var change : scanChangedAfter( seq, trimmed, limit ) )
+                    changed.put( change._1, change._2.snapshot( change._2.seq ) );
+                from = trimmed;
+            }
+            for( var change : changes.subMap( from, false, published, true ).entrySet() ) {
+                if( changed.size() >= limit ) break;
+                I id = change.getValue();
+                var m = data.get( id );
+                if( m == null || m.seq < change.getKey() ) break;
+                if( m.seq == change.getKey() ) changed.put( id, m.snapshot( change.getKey() ) );
+            }
+            // a concurrent trim may have dropped changes before the walk reached them, see trim()
+            if( trimmedSeq.get() > from ) return selectChangedAfter( seq, limit );
+            return BiStream.of( changed );
+        }
+
+        /**
+         * Finds changes dropped from the change index, the {@code limit} ones with the least sequence numbers
+         * are kept in a heap, so a page costs a pass over the data and no more memory than the page.
+         */
+        private List<Pair<I, Metadata<T>>> scanChangedAfter( long seq, long until, int limit ) {
+            var heap = new PriorityQueue<Pair<I, Metadata<T>>>( Comparator.comparingLong( change -> -change._2.seq ) );
+            for( var entry : data.entrySet() ) {
+                var m = entry.getValue();
+                if( m.seq <= seq || m.seq > until ) continue;
+                if( heap.size() < limit ) heap.add( __( entry.getKey(), m ) );
+                else if( m.seq < heap.peek()._2.seq ) {
+                    heap.poll();
+                    heap.add( __( entry.getKey(), m ) );
+                }
+            }
+            var page = new ArrayList<>( heap );
+            page.sort( Comparator.comparingLong( change -> change._2.seq ) );
+            return page;
+        }
+
+        /**
+         * Drops the oldest changes beyond {@link #changeLogLimit}. {@link #trimmedSeq} is advanced before a change
+         * is dropped, so a reader which missed it sees the advance afterwards.
+         */
+        private void trim() {
+            long published = this.published.get();
+            while( changeCount.get() > changeLogLimit ) {
+                var oldest = changes.firstEntry();
+                if( oldest == null || oldest.getKey() > published ) return;
+                trimmedSeq.accumulateAndGet( oldest.getKey(), Math::max );
+                if( changes.remove( oldest.getKey(), oldest.getValue() ) ) changeCount.decrementAndGet();
+            }
+        }
+
+        public void setChangeLogLimit( int changeLogLimit ) {
+            this.changeLogLimit = changeLogLimit;
+            trim();
+        }
+
+        public long lastSeq() {
+            return seq.get();
+        }
+
         public Optional<Metadata<T>> get( @Nonnull I id ) {
+            return Optional.ofNullable( getOrNull( id ) );
+        }
+
+        public Metadata<T> getOrNull( @Nonnull I id ) {
             requireNonNull( id );
-            return Optional.ofNullable( data.get( id ) )
-                .filter( m -> !m.isDeleted() );
+            var m = data.get( id );
+            if( m == null || !live( m, DateTimeUtils.currentTimeMillis() ) ) return null;
+            var evictor = this.evictor;
+            if( evictor != null ) evictor.touch( id );
+            return m;
+        }
+
+        /**
+         * Adds an object fetched from the backing store. It is not a change, so it is neither tracked for
+         * replication and persistence nor protected from eviction.
+         */
+        Metadata<T> load( @Nonnull I id, @Nonnull Metadata<T> m ) {
+            m.seq = 0;
+            var indexes = this.indexes;
+            var stale = new AtomicReference<Object[]>();
+            var loaded = new AtomicBoolean();
+            var existing = data.computeIfAbsent( id, anId -> {
+                loaded.set( true );
+                size( m, null );
+                stale.set( stage( indexes, anId, m ) );
+                return m;
+            } );
+            if( !loaded.get() ) return existing;
+            hit( id );
+            settle( indexes, id, stale.get() );
+            count( null, m.isDeleted() );
+            if( !m.isDeleted() ) touch( id );
+            schedule( id, m );
+            evict();
+            return m;
         }
 
         public boolean put( @Nonnull I id, @Nonnull Metadata<T> m ) {
             requireNonNull( id );
             requireNonNull( m );
             log.trace( "storing {}", m );
-            return data.put( id, m ) == null;
+            // tracked before it is stored, so maps keeping copies of metadata store the assigned seq
+            track( id, m );
+            var indexes = this.indexes;
+            var replaced = new AtomicReference<Metadata<T>>();
+            var stale = new AtomicReference<Object[]>();
+            data.compute( id, ( anId, o ) -> {
+                replaced.set( o );
+                if( o != m ) m.previous = o;
+                size( m, o );
+                stale.set( stage( indexes, anId, m ) );
+                return m;
+            } );
+            release( m );
+            settle( indexes, id, stale.get() );
+            var old = replaced.get();
+            boolean isNew = old == null;
+            count( old, m.isDeleted() );
+            if( old != null && old.seq != m.seq ) untrack( id, old );
+            if( !m.isDeleted() ) touch( id );
+            schedule( id, m );
+            evict();
+            return isNew;
         }
 
         public boolean put( @Nonnull I id, @Nonnull T object ) {
+            return put( id, object, -1 );
+        }
+
+        /**
+         * @param expires expiration time, 0 for none, negative keeps the current one
+         */
+        public boolean put( @Nonnull I id, @Nonnull T object, long expires ) {
             requireNonNull( id );
             requireNonNull( object );
             return lock.synchronizedOn( id, () -> {
                 boolean isNew = !data.containsKey( id );
-                var nm = data.compute( id, ( anId, m ) -> m != null ? m.update( object )
-                    : new Metadata<>( object ) );
+                var indexes = this.indexes;
+                var stale = new AtomicReference<Object[]>();
+                var nm = data.compute( id, ( anId, m ) -> {
+                    count( m, false );
+                    var updated = ( m != null ? m.next() : new Metadata<T>() ).update( object, fingerprint );
+                    if( expires >= 0 ) updated.expires = expires;
+                    size( updated, m );
+                    track( anId, updated );
+                    stale.set( stage( indexes, anId, updated ) );
+                    return updated;
+                } );
+                release( nm );
+                settle( indexes, id, stale.get() );
                 log.trace( "storing {}", nm );
+                touch( id );
+                if( expires > 0 ) schedule( id, nm );
+                evict();
                 return isNew;
             } );
         }
 
+        private void schedule( I id, Metadata<T> m ) {
+            if( m.expires > 0 && !m.isDeleted() )
+                expirations.merge( m.expires, List.of( id ), ( ids, more ) -> {
+                    var merged = new ArrayList<I>( ids.size() + more.size() );
+                    merged.addAll( ids );
+                    merged.addAll( more );
+                    return merged;
+                } );
+        }
+
+        /**
+         * Marks objects expired by {@code now} as deleted.
+         */
+        public void expire( long now, BiConsumer<I, Metadata<T>> expired ) {
+            for( var entry : expirations.headMap( now, true ).entrySet() ) {
+                if( !expirations.remove( entry.getKey(), entry.getValue() ) ) continue;
+                for( I id : entry.getValue() )
+                    lock.synchronizedOn( id, () -> {
+                        var m = data.get( id );
+                        if( m == null || m.isDeleted() || m.expires != entry.getKey() ) return;
+                        var deleted = delete( id );
+                        if( deleted != null ) expired.accept( id, deleted );
+                    } );
+            }
+        }
+
         public Optional<Metadata<T>> remap( @Nonnull I id, @Nonnull Function<T, T> update ) {
-            return lock.synchronizedOn( id, () ->
-                Optional.ofNullable( data.compute( id, ( anId, m ) -> m == null
-                    ? null
-                    : m.update( update.apply( m.object ) ) ) ) );
+            return lock.synchronizedOn( id, () -> {
+                var indexes = this.indexes;
+                var stale = new AtomicReference<Object[]>();
+                var remapped = new AtomicReference<Metadata<T>>();
+                long now = DateTimeUtils.currentTimeMillis();
+                data.computeIfPresent( id, ( anId, m ) -> {
+                    if( m.isExpired( now ) ) return m;
+                    count( m, false );
+                    var updated = track( anId, m.next().update( update.apply( m.object ), fingerprint ) );
+                    size( updated, m );
+                    stale.set( stage( indexes, anId, updated ) );
+                    remapped.set( updated );
+                    return updated;
+                } );
+                var nm = Optional.ofNullable( remapped.get() );
+                nm.ifPresent( m -> {
+                    release( m );
+                    settle( indexes, id, stale.get() );
+                    touch( id );
+                } );
+                return nm;
+            } );
+        }
+
+        public boolean replace( @Nonnull I id, long seq, @Nonnull T object ) {
+            var swapped = new AtomicBoolean();
+            var indexes = this.indexes;
+            var stale = new AtomicReference<Object[]>();
+            long now = DateTimeUtils.currentTimeMillis();
+            var nm = data.computeIfPresent( id, ( anId, m ) -> {
+                if( !live( m, now ) || m.seq != seq ) return m;
+                swapped.set( true );
+                var updated = track( anId, m.next().update( object, fingerprint ) );
+                size( updated, m );
+                stale.set( stage( indexes, anId, updated ) );
+                return updated;
+            } );
+            if( swapped.get() ) {
+                release( nm );
+                settle( indexes, id, stale.get() );
+                touch( id );
+            }
+            return swapped.get();
         }
 
         public List<Pair<I, Metadata<T>>> markDeletedAll() {
             List<Pair<I, Metadata<T>>> ms = selectLive().toList();
-            ms.forEach( p -> p._2.delete() );
+            ms.forEach( p -> delete( p._1 ) );
             return ms;
         }
 
         public Optional<Metadata<T>> markDeleted( @Nonnull I id ) {
             return lock.synchronizedOn( id, () -> {
-                Metadata<T> metadata = data.get( id );
-                if( metadata != null ) {
-                    metadata.delete();
-                    return Optional.of( metadata );
-                } else return Optional.empty();
+                Metadata<T> metadata = delete( id );
+                return Optional.ofNullable( metadata );
+            } );
+        }
+
+        private Metadata<T> delete( I id ) {
+            var indexes = this.indexes;
+            var stale = new AtomicReference<Object[]>();
+            Metadata<T> metadata = data.computeIfPresent( id, ( anId, m ) -> {
+                count( m, true );
+                var deleted = m.next();
+                deleted.delete( fingerprint );
+                stale.set( stage( indexes, anId, null ) );
+                return track( anId, deleted );
             } );
+            if( metadata != null ) {
+                release( metadata );
+                settle( indexes, id, stale.get() );
+            }
+            return metadata;
         }
 
         public Optional<Metadata<T>> removePermanently( @Nonnull I id ) {
-            return Optional.ofNullable( data.remove( id ) );
+            var indexes = this.indexes;
+            var removed = new AtomicReference<Metadata<T>>();
+            var stale = new AtomicReference<Object[]>();
+            data.computeIfPresent( id, ( anId, m ) -> {
+                removed.set( m );
+                stale.set( stage( indexes, anId, null ) );
+                return null;
+            } );
+            Metadata<T> metadata = removed.get();
+            if( metadata != null ) {
+                purged( -1 );
+                ( metadata.isDeleted() ? tombstones : live ).decrementAndGet();
+                bytes.addAndGet( -metadata.size );
+                untrack( id, metadata );
+                settle( indexes, id, stale.get() );
+                retire( id, metadata );
+                var evictor = this.evictor;
+                if( evictor != null ) evictor.remove( id );
+            }
+            return Optional.ofNullable( metadata );
+        }
+
+        public boolean bounded() {
+            return evictor != null;
+        }
+
+        boolean missing( I id ) {
+            var misses = this.misses;
+            return misses != null && misses.contains( id );
+        }
+
+        /**
+         * Remembers that the backing store has no object for {@code id} until it is written.
+         */
+        void missed( I id ) {
+            var misses = this.misses;
+            if( misses == null ) return;
+            if( misses.size() >= MISSES ) misses.clear();
+            misses.add( id );
+            // a concurrent write may have tracked the id before it was added
+            if( data.containsKey( id ) ) misses.remove( id );
+        }
+
+        private void hit( I id ) {
+            var misses = this.misses;
+            if( misses != null ) misses.remove( id );
+        }
+
+        public synchronized void setMaximumSize( int maximumSize ) {
+            var evictor = maximumSize > 0 ? new Evictor<I>( maximumSize ) : null;
+            if( evictor != null ) data.keySet().forEach( evictor::touch );
+            this.evictor = evictor;
+            this.misses = evictor != null ? ConcurrentHashMap.newKeySet() : null;
+            evict();
+        }
+
+        /**
+         * Called by persistence once all changes up to {@code seq} are stored in the backing store.
+         */
+        public void persisted( long seq ) {
+            persistent = true;
+            if( seq > persistedSeq ) persistedSeq = seq;
+            evict();
+        }
+
+        /**
+         * Removes up to {@code limit} oldest tombstones deleted before {@code deletedBefore}. Without a persistence
+         * any tombstone is purgeable, otherwise only those whose deletion is persisted.
+         *
+         * @return number of purged tombstones
+         */
+        public int purgeTombstones( long deletedBefore, int limit ) {
+            var tail = persistent ? graveyard.headMap( persistedSeq, true ) : graveyard;
+            int purged = 0;
+            for( var entry : tail.entrySet() ) {
+                if( purged >= limit ) break;
+                I id = entry.getValue();
+                var m = data.get( id );
+                if( m == null || !m.isDeleted() || m.seq != entry.getKey() ) {
+                    graveyard.remove( entry.getKey(), id );
+                    continue;
+                }
+                if( m.modified >= deletedBefore ) break;
+                if( purgeTombstone( id, entry.getKey() ) ) purged++;
+            }
+            return purged;
+        }
+
+        /**
+         * Removes the tombstone of {@code id} unless it has been changed since its deletion {@code seq}, e.g. once
+         * the deletion is persisted. Unlike {@link #removePermanently(Object)} it advances {@link #purgedSeq()} to
+         * {@code seq} only, as the deletion is in the change feed already and slaves past it need no reconciliation.
+         *
+         * @return false if there is no such tombstone
+         */
+        public boolean purgeTombstone( @Nonnull I id, long seq ) {
+            var purged = new AtomicReference<Metadata<T>>();
+            data.computeIfPresent( id, ( anId, m ) -> {
+                if( !m.isDeleted() || m.seq != seq ) return m;
+                purged.set( m );
+                return null;
+            } );
+            var m = purged.get();
+            if( m == null ) return false;
+            purged( seq );
+            tombstones.decrementAndGet();
+            bytes.addAndGet( -m.size );
+            untrack( id, m );
+            retire( id, m );
+            var evictor = this.evictor;
+            if( evictor != null ) evictor.remove( id );
+            return true;
+        }
+
+        /**
+         * Removes least recently used persisted objects while the memory is over its maximum size.
+         */
+        private void evict() {
+            var evictor = this.evictor;
+            if( evictor == null ) return;
+            int excess = data.size() - evictor.maximumSize;
+            if( excess <= 0 ) return;
+            for( I id : evictor.coldest( excess * 2 + 16 ) ) {
+                if( excess <= 0 ) break;
+                if( evict( id, evictor ) ) excess--;
+            }
+        }
+
+        private boolean evict( I id, Evictor<I> evictor ) {
+            var indexes = this.indexes;
+            var evicted = new AtomicReference<Metadata<T>>();
+            var stale = new AtomicReference<Object[]>();
+            data.computeIfPresent( id, ( anId, m ) -> {
+                if( m.seq > persistedSeq ) return m;
+                evicted.set( m );
+                stale.set( stage( indexes, anId, null ) );
+                return null;
+            } );
+            var m = evicted.get();
+            if( m == null ) {
+                if( !data.containsKey( id ) ) evictor.remove( id );
+                return false;
+            }
+            ( m.isDeleted() ? tombstones : live ).decrementAndGet();
+            bytes.addAndGet( -m.size );
+            untrack( id, m );
+            settle( indexes, id, stale.get() );
+            retire( id, m );
+            evictor.remove( id );
+            return true;
         }
 
         public void clear() {
+            purged( -1 );
             data.clear();
+            live.set( 0 );
+            tombstones.set( 0 );
+            bytes.set( 0 );
+            changes.clear();
+            changeCount.set( 0 );
+            var misses = this.misses;
+            if( misses != null ) misses.clear();
+            graveyard.clear();
+            expirations.clear();
+            indexes.forEach( Index::clear );
+            var evictor = this.evictor;
+            if( evictor != null ) evictor.clear();
+        }
+
+        /**
+         * @return number of live objects, the cost depends on the number of expired objects not swept
+         * by {@link #expire(long, BiConsumer)} yet
+         */
+        public long size() {
+            var expired = new HashSet<I>();
+            for( var entry : expirations.headMap( DateTimeUtils.currentTimeMillis(), true ).entrySet() )
+                for( I id : entry.getValue() ) {
+                    var m = data.get( id );
+                    if( m != null && !m.isDeleted() && m.expires == entry.getKey() ) expired.add( id );
+                }
+            return live.get() - expired.size();
+        }
+
+        /**
+         * @return number of objects marked as deleted but not yet removed permanently, constant time
+         */
+        public long tombstones() {
+            return tombstones.get();
+        }
+
+        /**
+         * @return see {@link ReplicationMaster#purgedSeq()}
+         */
+        public long purgedSeq() {
+            return purgedSeq.get();
+        }
+
+        /**
+         * @param seq seq of a purged tombstone, which slaves past it have seen already, or -1 if the removal
+         *            was never in the change feed
+         */
+        private void purged( long seq ) {
+            long purged = seq;
+            if( seq < 0 ) {
+                purged = this.seq.incrementAndGet();
+                publish( purged );
+            }
+            purgedSeq.accumulateAndGet( purged, Math::max );
+        }
+
+        /**
+         * Advances {@link #published} over {@code seq} and the numbers published ahead of it. Only the writer
+         * which finds the number following {@link #published} advances it, so no global lock is needed.
+         */
+        private void publish( long seq ) {
+            if( !published.compareAndSet( seq - 1, seq ) ) pending.add( seq );
+            // the writer of the preceding number may have looked for this one before it was added
+            long last;
+            while( pending.remove( ( last = published.get() ) + 1 ) ) published.set( last + 1 );
+        }
+
+        private Metadata<T> track( I id, Metadata<T> m ) {
+            long previous = m.seq;
+            hit( id );
+            m.seq = seq.incrementAndGet();
+            changes.put( m.seq, id );
+            changeCount.incrementAndGet();
+            publish( m.seq );
+            if( changes.remove( previous, id ) ) changeCount.decrementAndGet();
+            graveyard.remove( previous, id );
+            if( m.isDeleted() ) graveyard.put( m.seq, id );
+            if( changeCount.get() > changeLogLimit ) trim();
+            return m;
+        }
+
+        /**
+         * Drops the previous version unless a snapshot is open. Called after the seq of the new version is
+         * assigned, so a snapshot opened later sees the new version as visible.
+         */
+        private void release( Metadata<T> m ) {
+            if( snapshots.isEmpty() ) m.previous = null;
+        }
+
+        /**
+         * Keeps a removed object for the open snapshots it is visible in.
+         */
+        private void retire( I id, Metadata<T> m ) {
+            for( var snapshot : snapshots ) snapshot.retire( id, m );
+        }
+
+        /**
+         * Opens a consistent view of the current state, it costs nothing until objects are changed.
+         */
+        public Snapshot<I, T> snapshot() {
+            return new Snapshot<>( this );
+        }
+
+        void close( Snapshot<I, T> snapshot ) {
+            long limit = seq.get();
+            oldestSnapshotSeq.accumulateAndGet( snapshot.seq, Math::min );
+            snapshots.remove( snapshot );
+            if( !snapshots.isEmpty() ) return;
+            long oldest = oldestSnapshotSeq.getAndSet( Long.MAX_VALUE );
+            // cleared by a concurrent close
+            if( oldest == Long.MAX_VALUE ) return;
+            // a snapshot opened from now on sees every version up to limit as visible
+            if( oldest < trimmedSeq.get() ) {
+                for( var m : data.values() ) if( m.seq > oldest && m.seq <= limit ) m.previous = null;
+                return;
+            }
+            for( I id : changes.tailMap( oldest, false ).headMap( limit, true ).values() ) {
+                var m = data.get( id );
+                if( m != null && m.seq <= limit ) m.previous = null;
+            }
+        }
+
+        private void untrack( I id, Metadata<T> m ) {
+            if( m != null ) {
+                if( changes.remove( m.seq, id ) ) changeCount.decrementAndGet();
+                graveyard.remove( m.seq, id );
+            }
+        }
+
+        private void count( Metadata<T> old, boolean deleted ) {
+            if( old != null ) {
+                if( old.isDeleted() == deleted ) return;
+                ( old.isDeleted() ? tombstones : live ).decrementAndGet();
+            }
+            ( deleted ? tombstones : live ).incrementAndGet();
+        }
+
+        synchronized <X extends Index<I, T, ?>> X addIndex( X index ) {
+            var updated = new ArrayList<>( indexes );
+            updated.add( index );
+            indexes = List.copyOf( updated );
+            populate( index );
+            return index;
+        }
+
+        /**
+         * Stages each object within a data write, so it is ordered with concurrent writers of the same id.
+         */
+        private <K> void populate( Index<I, T, K> index ) {
+            for( I id : data.keySet() ) {
+                var stale = new AtomicReference<K>();
+                data.computeIfPresent( id, ( anId, m ) -> {
+                    stale.set( index.stage( anId, m.isDeleted() ? null : m.object ) );
+                    return m;
+                } );
+                index.settle( id, stale.get() );
+            }
+        }
+
+        synchronized void removeIndex( Index<I, T, ?> index ) {
+            var updated = new ArrayList<>( indexes );
+            updated.remove( index );
+            indexes = List.copyOf( updated );
+        }
+
+        /**
+         * Called within the data write of the id with the version being published.
+         *
+         * @return replaced keys to {@link #settle(List, Object, Object[])} once the version is published
+         */
+        private Object[] stage( List<Index<I, T, ?>> indexes, I id, Metadata<T> m ) {
+            if( indexes.isEmpty() ) return null;
+            T object = m != null && !m.isDeleted() ? m.object : null;
+            var stale = new Object[indexes.size()];
+            for( int i = 0; i < stale.length; i++ ) stale[i] = indexes.get( i ).stage( id, object );
+            return stale;
+        }
+
+        @SuppressWarnings( { "unchecked", "rawtypes" } )
+        private void settle( List<Index<I, T, ?>> indexes, I id, Object[] stale ) {
+            if( stale == null ) return;
+            for( int i = 0; i < stale.length; i++ ) ( ( Index ) indexes.get( i ) ).settle( id, stale[i] );
+        }
+
+        private void touch( I id ) {
+            var evictor = this.evictor;
+            if( evictor != null ) evictor.touch( id );
+        }
+
+        /**
+         * Sizes a new version within the compute of its id, before it is published. A tombstone keeps the size
+         * of the object it replaces.
+         */
+        private void size( Metadata<T> m, Metadata<T> old ) {
+            long oldSize = old != null ? old.size : 0;
+            var sizer = this.sizer;
+            m.size = m.isDeleted() ? oldSize : sizer != null ? sizer.sizeOf( m.object ) : 0;
+            bytes.addAndGet( m.size - oldSize );
+        }
+
+        /**
+         * @return estimated size of all objects, zero unless a {@link Sizer} is set
+         */
+        public long bytes() {
+            return bytes.get();
+        }
+
+        public Sizer<? super T> sizer() {
+            return sizer;
+        }
+
+        public synchronized void setSizer( Sizer<? super T> sizer ) {
+            this.sizer = sizer;
+            long total = 0;
+            for( var m : data.values() ) {
+                m.size = sizer != null ? sizer.sizeOf( m.object ) : 0;
+                total += m.size;
+            }
+            bytes.set( total );
         }
 
         public Stream<I> selectLiveIds() {
             return selectLive().mapToObj( ( id, m ) -> id );
         }
-
     }
 }
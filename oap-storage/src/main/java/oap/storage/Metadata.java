@@ -25,6 +25,7 @@
 package oap.storage;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.databind.annotation.JsonTypeIdResolver;
 import lombok.EqualsAndHashCode;
@@ -37,10 +38,32 @@ import java.io.Serializable;
 public class Metadata<T> implements Serializable {
     public long modified = DateTimeUtils.currentTimeMillis();
     public long hash = 0;
+    /**
+     * Modification sequence number, assigned by the storage memory holding this metadata on every change.
+     * Unlike {@link #modified} it is unique and monotonic within a storage, so it can be used as an exact cursor.
+     * It is local to the storage memory, so it is neither persisted nor compared.
+     */
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    public volatile long seq = 0;
+    /**
+     * Expiration time in milliseconds, 0 means the object never expires, see {@link MemoryStorage#expire()}.
+     */
+    public long expires = 0;
     @JsonTypeIdResolver( TypeIdFactory.class )
     @JsonTypeInfo( use = JsonTypeInfo.Id.CUSTOM, include = JsonTypeInfo.As.EXTERNAL_PROPERTY, property = "object:type" )
     public T object;
     private boolean deleted = false;
+    /**
+     * object size estimated by the {@link Sizer} of the storage memory holding this metadata
+     */
+    @JsonIgnore
+    transient long size = 0;
+    /**
+     * version replaced by this one, kept while a {@link Snapshot} may need it
+     */
+    @JsonIgnore
+    transient volatile Metadata<T> previous;
 
     @JsonCreator
     protected Metadata( T object ) {
@@ -51,22 +74,73 @@ public class Metadata<T> implements Serializable {
     }
 
     public static <T> Metadata<T> from( Metadata<T> metadata ) {
-        Metadata<T> m = new Metadata<>( metadata.object );
+        Metadata<T> m = new Metadata<>();
+        m.object = metadata.object;
         m.modified = metadata.modified;
         m.hash = metadata.hash;
+        m.expires = metadata.expires;
         return m;
     }
 
+    static <T> Metadata<T> of( T object, long seq, long modified, long hash, long expires, boolean deleted ) {
+        Metadata<T> m = new Metadata<>();
+        m.object = object;
+        m.seq = seq;
+        m.modified = modified;
+        m.hash = hash;
+        m.expires = expires;
+        m.deleted = deleted;
+        return m;
+    }
+
+    Metadata<T> snapshot( long seq ) {
+        Metadata<T> m = new Metadata<>();
+        m.object = object;
+        m.modified = modified;
+        m.hash = hash;
+        m.deleted = deleted;
+        m.seq = seq;
+        m.expires = expires;
+        return m;
+    }
+
+    /**
+     * @return copy to be changed instead of this metadata, which becomes its previous version. The copy of
+     * a deleted or expired object does not inherit its expiration.
+     */
+    Metadata<T> next() {
+        Metadata<T> m = snapshot( seq );
+        if( deleted || isExpired( DateTimeUtils.currentTimeMillis() ) ) m.expires = 0;
+        m.size = size;
+        m.previous = this;
+        return m;
+    }
+
+    /**
+     * @return true if the ttl has passed, even if the object is not deleted by {@link MemoryStorage#expire()} yet
+     */
+    public boolean isExpired( long now ) {
+        return expires != 0 && expires <= now;
+    }
+
     public Metadata<T> update( T t ) {
+        return update( t, Fingerprint.HASH_CODE );
+    }
+
+    public Metadata<T> update( T t, Fingerprint<? super T> fingerprint ) {
         this.object = t;
         this.deleted = false;
-        refresh();
+        refresh( fingerprint );
         return this;
     }
 
     public void refresh() {
+        refresh( Fingerprint.HASH_CODE );
+    }
+
+    public void refresh( Fingerprint<? super T> fingerprint ) {
         this.modified = DateTimeUtils.currentTimeMillis();
-        this.hash = this.object.hashCode();
+        this.hash = fingerprint.of( this.object );
     }
 
     public boolean isDeleted() {
@@ -74,12 +148,20 @@ public class Metadata<T> implements Serializable {
     }
 
     public void delete() {
+        delete( Fingerprint.HASH_CODE );
+    }
+
+    public void delete( Fingerprint<? super T> fingerprint ) {
         this.deleted = true;
-        refresh();
+        refresh( fingerprint );
     }
 
+    /**
+     * A zero hash, as computed by {@link Fingerprint#NONE}, tells nothing about the object, so such metadata
+     * never looks unmodified: objects changed within the same millisecond would be skipped otherwise.
+     */
     public boolean looksUnmodified( Metadata<T> metadata ) {
-        return modified == metadata.modified && hash == metadata.hash;
+        return hash != 0 && modified == metadata.modified && hash == metadata.hash;
     }
 
     @Override
@@ -87,6 +169,8 @@ public class Metadata<T> implements Serializable {
         return "Metadata("
             + "modified=" + modified
             + ", hash=" + hash
+            + ", seq=" + seq
+            + ", expires=" + expires
             + ", object=" + object
             + ", deleted=" + deleted
             + ')';
@@ -0,0 +1,57 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.id.Identifier;
+
+/**
+ * {@link MemoryStorage} keeping serialized objects off heap in {@link OffHeapMetadataMap}, for large read-mostly data.
+ * Objects are decoded on every access which is not served by the on-heap cache.
+ */
+public class OffHeapMemoryStorage<I, T> extends MemoryStorage<I, T> {
+    private final OffHeapMetadataMap<I, T> data;
+
+    public OffHeapMemoryStorage( Identifier<I, T> identifier, Lock lock, int cacheSize ) {
+        this( identifier, lock, Fingerprint.HASH_CODE, OffHeapMetadataMap.DEFAULT_CHUNK_SIZE, cacheSize );
+    }
+
+    public OffHeapMemoryStorage( Identifier<I, T> identifier, Lock lock, Fingerprint<? super T> fingerprint,
+                                 int chunkSize, int cacheSize ) {
+        this( identifier, lock, fingerprint, new OffHeapMetadataMap<>( chunkSize, cacheSize ) );
+    }
+
+    private OffHeapMemoryStorage( Identifier<I, T> identifier, Lock lock, Fingerprint<? super T> fingerprint,
+                                  OffHeapMetadataMap<I, T> data ) {
+        super( identifier, lock, new Memory<>( lock, fingerprint, data ) );
+        this.data = data;
+    }
+
+    /**
+     * @return off-heap bytes in use
+     */
+    public long offHeapBytes() {
+        return data.allocated();
+    }
+}
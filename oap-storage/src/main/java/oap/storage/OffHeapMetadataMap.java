@@ -0,0 +1,383 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.json.Binder;
+import oap.reflect.TypeRef;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Keeps {@link Metadata} serialized in direct memory chunks, on heap there is only the id to address index
+ * and an optional LRU cache of decoded objects.
+ * <p>
+ * Every write appends a record, the space of replaced records is reclaimed by compacting all chunks once it
+ * exceeds half of the allocated memory. Writes are serialized, reads are lock-free unless they race with a write.
+ * Returned metadata are decoded copies or cached ones, they must not be changed outside of remapping functions.
+ */
+public class OffHeapMetadataMap<I, T> extends AbstractMap<I, Metadata<T>> implements ConcurrentMap<I, Metadata<T>> {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int PREFIX = 2 * Long.BYTES;
+
+    private final ConcurrentHashMap<I, Long> addresses = new ConcurrentHashMap<>();
+    private final StampedLock lock = new StampedLock();
+    private final int chunkSize;
+    private final Map<I, Metadata<T>> cache;
+    private final TypeRef<Metadata<T>> type = new TypeRef<Metadata<T>>() {};
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int position;
+    private long allocated;
+    private long garbage;
+
+    /**
+     * @param cacheSize number of decoded objects kept on heap, 0 disables the cache
+     */
+    public OffHeapMetadataMap( int chunkSize, int cacheSize ) {
+        this.chunkSize = chunkSize;
+        this.cache = cacheSize > 0 ? Collections.synchronizedMap( new LinkedHashMap<>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<I, Metadata<T>> eldest ) {
+                return size() > cacheSize;
+            }
+        } ) : null;
+    }
+
+    public OffHeapMetadataMap() {
+        this( DEFAULT_CHUNK_SIZE, 0 );
+    }
+
+    /**
+     * @return off-heap bytes in use, including not yet reclaimed ones
+     */
+    public long allocated() {
+        long stamp = lock.readLock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlockRead( stamp );
+        }
+    }
+
+    @Override
+    public Metadata<T> get( Object id ) {
+        if( cache != null ) {
+            var cached = cache.get( id );
+            if( cached != null ) return cached;
+        } else {
+            long stamp = lock.tryOptimisticRead();
+            Long address = addresses.get( id );
+            byte[] bytes = address != null ? read( chunks, address ) : null;
+            if( stamp != 0 && lock.validate( stamp ) && ( address == null || bytes != null ) )
+                return bytes != null ? decode( bytes ) : null;
+        }
+        long stamp = lock.readLock();
+        try {
+            Long address = addresses.get( id );
+            if( address == null ) return null;
+            var m = decode( read( chunks, address ) );
+            // populated under the read lock, so a concurrent write cannot be overwritten with a stale copy
+            if( cache != null ) cache.put( cast( id ), m );
+            return m;
+        } finally {
+            lock.unlockRead( stamp );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private I cast( Object id ) {
+        return ( I ) id;
+    }
+
+    @Override
+    public boolean containsKey( Object id ) {
+        return addresses.containsKey( id );
+    }
+
+    @Override
+    public Metadata<T> put( @Nonnull I id, @Nonnull Metadata<T> m ) {
+        requireNonNull( m );
+        Metadata<T>[] old = new Metadata[1];
+        compute( id, ( i, o ) -> {
+            old[0] = o;
+            return m;
+        } );
+        return old[0];
+    }
+
+    @Override
+    public Metadata<T> putIfAbsent( @Nonnull I id, @Nonnull Metadata<T> m ) {
+        requireNonNull( m );
+        Metadata<T>[] old = new Metadata[1];
+        compute( id, ( i, o ) -> {
+            old[0] = o;
+            return o != null ? o : m;
+        } );
+        return old[0];
+    }
+
+    @Override
+    public Metadata<T> remove( Object id ) {
+        long stamp = lock.writeLock();
+        try {
+            Long address = addresses.remove( id );
+            if( address == null ) return null;
+            if( cache != null ) cache.remove( id );
+            var old = decode( read( chunks, address ) );
+            free( address );
+            return old;
+        } finally {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+    @Override
+    public boolean remove( Object id, Object value ) {
+        boolean[] removed = new boolean[1];
+        computeIfPresent( cast( id ), ( i, old ) -> {
+            removed[0] = old.equals( value );
+            return removed[0] ? null : old;
+        } );
+        return removed[0];
+    }
+
+    @Override
+    public boolean replace( @Nonnull I id, @Nonnull Metadata<T> oldValue, @Nonnull Metadata<T> newValue ) {
+        boolean[] replaced = new boolean[1];
+        computeIfPresent( id, ( i, old ) -> {
+            replaced[0] = old.equals( oldValue );
+            return replaced[0] ? newValue : old;
+        } );
+        return replaced[0];
+    }
+
+    @Override
+    public Metadata<T> replace( @Nonnull I id, @Nonnull Metadata<T> value ) {
+        Metadata<T>[] old = new Metadata[1];
+        computeIfPresent( id, ( i, o ) -> {
+            old[0] = o;
+            return value;
+        } );
+        return old[0];
+    }
+
+    @Override
+    public Metadata<T> computeIfAbsent( I id, @Nonnull Function<? super I, ? extends Metadata<T>> mapping ) {
+        return compute( id, ( i, old ) -> old != null ? old : mapping.apply( i ) );
+    }
+
+    @Override
+    public Metadata<T> computeIfPresent( I id, @Nonnull BiFunction<? super I, ? super Metadata<T>, ? extends Metadata<T>> remapping ) {
+        return compute( id, ( i, old ) -> old != null ? remapping.apply( i, old ) : null );
+    }
+
+    /**
+     * The remapping function runs under the write lock and must not access the map. Returning the old
+     * metadata as is keeps its record, nothing is written.
+     */
+    @Override
+    public Metadata<T> compute( I id, @Nonnull BiFunction<? super I, ? super Metadata<T>, ? extends Metadata<T>> remapping ) {
+        requireNonNull( id );
+        long stamp = lock.writeLock();
+        try {
+            Long address = addresses.get( id );
+            Metadata<T> old = address != null ? decode( read( chunks, address ) ) : null;
+            Metadata<T> m = remapping.apply( id, old );
+            if( m == old ) return m;
+            if( m == null ) {
+                if( address != null ) {
+                    addresses.remove( id );
+                    free( address );
+                }
+            } else {
+                addresses.put( id, write( encode( m ) ) );
+                if( address != null ) free( address );
+            }
+            if( cache != null ) cache.remove( id );
+            if( garbage > allocated / 2 && allocated > chunkSize ) compact();
+            return m;
+        } finally {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+    @Override
+    public Metadata<T> merge( I id, @Nonnull Metadata<T> value,
+                              @Nonnull BiFunction<? super Metadata<T>, ? super Metadata<T>, ? extends Metadata<T>> remapping ) {
+        return compute( id, ( i, old ) -> old == null ? value : remapping.apply( old, value ) );
+    }
+
+    @Override
+    public int size() {
+        return addresses.size();
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            addresses.clear();
+            if( cache != null ) cache.clear();
+            chunks = new ByteBuffer[0];
+            position = 0;
+            allocated = 0;
+            garbage = 0;
+        } finally {
+            lock.unlockWrite( stamp );
+        }
+    }
+
+    @Override
+    @Nonnull
+    public Set<Entry<I, Metadata<T>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            @Nonnull
+            public Iterator<Entry<I, Metadata<T>>> iterator() {
+                var ids = addresses.keySet().iterator();
+                return new Iterator<>() {
+                    private Entry<I, Metadata<T>> next = advance();
+
+                    private Entry<I, Metadata<T>> advance() {
+                        while( ids.hasNext() ) {
+                            I id = ids.next();
+                            var m = OffHeapMetadataMap.this.get( id );
+                            if( m != null ) return new SimpleImmutableEntry<>( id, m );
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Entry<I, Metadata<T>> next() {
+                        if( next == null ) throw new NoSuchElementException();
+                        var result = next;
+                        next = advance();
+                        return result;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return addresses.size();
+            }
+        };
+    }
+
+    /**
+     * {@link Metadata#seq} and {@link Metadata#size} are not a part of the json, so they are stored as a prefix
+     */
+    private byte[] encode( Metadata<T> m ) {
+        var json = Binder.json.marshal( m ).getBytes( StandardCharsets.UTF_8 );
+        return ByteBuffer.allocate( PREFIX + json.length ).putLong( m.seq ).putLong( m.size ).put( json ).array();
+    }
+
+    private Metadata<T> decode( byte[] bytes ) {
+        Metadata<T> m = Binder.json.unmarshal( type, new String( bytes, PREFIX, bytes.length - PREFIX, StandardCharsets.UTF_8 ) );
+        var prefix = ByteBuffer.wrap( bytes );
+        m.seq = prefix.getLong();
+        m.size = prefix.getLong();
+        return m;
+    }
+
+    /**
+     * @return null if the address is not valid for these chunks, possible for optimistic reads only
+     */
+    private static byte[] read( ByteBuffer[] chunks, long address ) {
+        int chunk = ( int ) ( address >>> 32 );
+        int offset = ( int ) address;
+        if( chunk >= chunks.length || offset < 0 || offset + 4 > chunks[chunk].capacity() ) return null;
+        var buffer = chunks[chunk].duplicate();
+        int length = buffer.getInt( offset );
+        if( length < 0 || offset + 4 + length > buffer.capacity() ) return null;
+        byte[] bytes = new byte[length];
+        buffer.position( offset + 4 );
+        buffer.get( bytes );
+        return bytes;
+    }
+
+    private long write( byte[] bytes ) {
+        int size = 4 + bytes.length;
+        var chunks = this.chunks;
+        if( chunks.length == 0 || position + size > chunks[chunks.length - 1].capacity() ) {
+            chunks = Arrays.copyOf( chunks, chunks.length + 1 );
+            chunks[chunks.length - 1] = ByteBuffer.allocateDirect( Math.max( chunkSize, size ) );
+            this.chunks = chunks;
+            position = 0;
+        }
+        var buffer = chunks[chunks.length - 1].duplicate();
+        buffer.putInt( position, bytes.length );
+        buffer.position( position + 4 );
+        buffer.put( bytes );
+        long address = ( ( long ) ( chunks.length - 1 ) << 32 ) | position;
+        position += size;
+        allocated += size;
+        return address;
+    }
+
+    private void free( long address ) {
+        int chunk = ( int ) ( address >>> 32 );
+        int length = chunks[chunk].getInt( ( int ) address );
+        garbage += 4 + length;
+    }
+
+    /**
+     * Copies live records into new chunks, old chunks are released by the garbage collector
+     * once no optimistic reader holds them.
+     */
+    private void compact() {
+        var old = chunks;
+        chunks = new ByteBuffer[0];
+        position = 0;
+        allocated = 0;
+        garbage = 0;
+        List<I> ids = new ArrayList<>( addresses.keySet() );
+        for( I id : ids ) addresses.put( id, write( read( old, addresses.get( id ) ) ) );
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.json.Binder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary replication payload: a deflated batch of metadata with sequence numbers and timestamps delta encoded
+ * as variable length integers, objects are encoded by {@link ObjectCodec}.
+ * It has to be set both on the master, see {@link MemoryStorage#setReplicationCodec(ReplicationCodec)},
+ * and on the {@link Replicator}.
+ */
+public class ReplicationCodec<T> {
+    private static final int DELETED = 1;
+    private static final int EXPIRES = 2;
+
+    private final ObjectCodec<T> objectCodec;
+    public int level = Deflater.BEST_SPEED;
+
+    public ReplicationCodec( ObjectCodec<T> objectCodec ) {
+        this.objectCodec = objectCodec;
+    }
+
+    public static <T> ReplicationCodec<T> json( Class<T> clazz ) {
+        return new ReplicationCodec<>( new ObjectCodec<>() {
+            @Override
+            public byte[] encode( T object ) {
+                return Binder.json.marshal( object ).getBytes( StandardCharsets.UTF_8 );
+            }
+
+            @Override
+            public T decode( byte[] bytes ) {
+                return Binder.json.unmarshal( clazz, new String( bytes, StandardCharsets.UTF_8 ) );
+            }
+        } );
+    }
+
+    public byte[] encode( List<Metadata<T>> batch ) {
+        var bytes = new ByteArrayOutputStream();
+        var deflater = new Deflater( level );
+        try( var out = new DataOutputStream( new DeflaterOutputStream( bytes, deflater ) ) ) {
+            writeVarLong( out, batch.size() );
+            long seq = 0;
+            long modified = 0;
+            for( var m : batch ) {
+                out.writeByte( ( m.isDeleted() ? DELETED : 0 ) | ( m.expires != 0 ? EXPIRES : 0 ) );
+                writeVarLong( out, zigzag( m.seq - seq ) );
+                writeVarLong( out, zigzag( m.modified - modified ) );
+                out.writeLong( m.hash );
+                if( m.expires != 0 ) writeVarLong( out, zigzag( m.expires - m.modified ) );
+                var object = objectCodec.encode( m.object );
+                writeVarLong( out, object.length );
+                out.write( object );
+                seq = m.seq;
+                modified = m.modified;
+            }
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    public List<Metadata<T>> decode( byte[] payload ) {
+        try( var in = new DataInputStream( new InflaterInputStream( new ByteArrayInputStream( payload ) ) ) ) {
+            int size = ( int ) readVarLong( in );
+            var batch = new ArrayList<Metadata<T>>( size );
+            long seq = 0;
+            long modified = 0;
+            for( int i = 0; i < size; i++ ) {
+                int flags = in.readUnsignedByte();
+                seq += unzigzag( readVarLong( in ) );
+                modified += unzigzag( readVarLong( in ) );
+                long hash = in.readLong();
+                long expires = ( flags & EXPIRES ) != 0 ? modified + unzigzag( readVarLong( in ) ) : 0;
+                var object = new byte[( int ) readVarLong( in )];
+                in.readFully( object );
+                batch.add( Metadata.of( objectCodec.decode( object ), seq, modified, hash, expires, ( flags & DELETED ) != 0 ) );
+            }
+            return batch;
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    private static long zigzag( long value ) {
+        return ( value << 1 ) ^ ( value >> 63 );
+    }
+
+    private static long unzigzag( long value ) {
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+
+    private static void writeVarLong( DataOutputStream out, long value ) throws IOException {
+        while( ( value & ~0x7FL ) != 0 ) {
+            out.writeByte( ( int ) ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        out.writeByte( ( int ) value );
+    }
+
+    private static long readVarLong( DataInputStream in ) throws IOException {
+        long value = 0;
+        for( int shift = 0; ; shift += 7 ) {
+            int b = in.readUnsignedByte();
+            value |= ( long ) ( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) return value;
+        }
+    }
+
+    public interface ObjectCodec<T> {
+        byte[] encode( T object );
+
+        T decode( byte[] bytes );
+    }
+}
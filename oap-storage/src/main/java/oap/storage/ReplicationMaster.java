@@ -24,11 +24,87 @@
 
 package oap.storage;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Stream;
 
 public interface ReplicationMaster<I, T> {
+    /**
+     * @param since wall-clock time, see {@link Metadata#modified}
+     */
     Stream<Metadata<T>> updatedSince( long since );
 
+    /**
+     * @return true if the master assigns {@link Metadata#seq}, so its changes can be paged by it. Slaves of other
+     * masters fall back to {@link #updatedSince(long)} and compare {@link #ids()} on every pull.
+     */
+    default boolean sequenced() {
+        return false;
+    }
+
+    /**
+     * Served by {@link #sequenced()} masters only. The default implementation scans {@link #updatedSince(long)},
+     * masters keeping a change log should override it.
+     *
+     * @param seq the last {@link Metadata#seq} seen by the caller
+     * @return live objects changed after {@code seq} in sequence order
+     */
+    default Stream<Metadata<T>> updatedAfter( long seq ) {
+        return updatedSince( Long.MIN_VALUE )
+            .filter( m -> m.seq > seq )
+            .sorted( Comparator.comparingLong( m -> m.seq ) );
+    }
+
+    /**
+     * Same as {@link #updatedAfter(long)} including tombstones, so deletions can be replicated incrementally.
+     */
+    default Stream<Metadata<T>> changedAfter( long seq ) {
+        return updatedAfter( seq );
+    }
+
+    /**
+     * A page of {@link #changedAfter(long)}, the {@link Metadata#seq} of its last element is the cursor
+     * for the next page.
+     */
+    default Stream<Metadata<T>> changedAfter( long seq, int limit ) {
+        return changedAfter( seq ).limit( limit );
+    }
+
+    /**
+     * {@link #changedAfter(long, int)} encoded by the {@link ReplicationCodec} of the master.
+     *
+     * @return null if the master has no codec
+     */
+    default byte[] changedAfterEncoded( long seq, int limit ) {
+        return null;
+    }
+
+    /**
+     * @return true if {@link #awaitChangedAfter(long, long)} blocks until there are changes
+     */
+    default boolean supportsPush() {
+        return false;
+    }
+
+    /**
+     * Long poll for push replication: blocks until the master has changes after {@code seq} or the timeout elapses.
+     * Masters which do not {@link #supportsPush()} return at once.
+     *
+     * @param seq a value returned by the previous call, it is a sequence number of the master, unlike a cursor
+     *            of an empty master
+     * @return the last sequence number of the master, not greater than {@code seq} on timeout
+     */
+    default long awaitChangedAfter( long seq, long timeout ) {
+        return seq;
+    }
+
+    /**
+     * A slave which has seen changes up to this sequence number only can have missed removals absent
+     * from {@link #changedAfter(long)} and has to reconcile with {@link #ids()}.
+     */
+    default long purgedSeq() {
+        return Long.MAX_VALUE;
+    }
+
     List<I> ids();
 }
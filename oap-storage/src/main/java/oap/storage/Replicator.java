@@ -24,26 +24,26 @@
 
 package oap.storage;
 
-import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
 import oap.application.ServiceName;
 import oap.application.remote.RemoteInvocationException;
 import oap.concurrent.scheduler.Scheduled;
 import oap.concurrent.scheduler.Scheduler;
 import oap.storage.Storage.DataListener.IdObject;
-import oap.util.Pair;
+import org.joda.time.DateTimeUtils;
 
 import java.io.Closeable;
 import java.io.UncheckedIOException;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.stream.Collectors.toList;
 import static oap.storage.Storage.DataListener.IdObject.__io;
-import static oap.util.Pair.__;
 
 /**
  * Replicator works on the MemoryStorage internals. It's intentional.
@@ -59,20 +59,97 @@ public class Replicator<I, T> implements Closeable {
     @ServiceName
     public String serviceName = "<unknown>";
     private Scheduled scheduled;
-    private transient Pair<Long, String> lastModified = __( -1L, "" );
+    /**
+     * deletions come with the change feed, full id lists are compared after removals the feed misses and
+     * at this interval
+     */
+    public long reconciliationInterval = 60 * 60 * 1000;
+    /**
+     * changes are pulled and applied in pages of this size, so a full resync does not materialize the dataset
+     */
+    public int batchSize = 10_000;
+    /**
+     * pulls pages in the compact binary form if the master has a codec too, see {@link ReplicationCodec}
+     */
+    public ReplicationCodec<T> codec;
+    /**
+     * pages of at least {@link #parallelThreshold} changes are applied by this many threads, bucketed by id
+     */
+    public int parallelism = 1;
+    public int parallelThreshold = 1000;
+    private ForkJoinPool pool;
+    private transient volatile long lastSeq = -1;
+    private long reconciled = Long.MIN_VALUE / 2;
+    /**
+     * {@link ReplicationMaster#purgedSeq()} the last reconciliation covered
+     */
+    private volatile long reconciledPurge = Long.MIN_VALUE;
+    private Boolean sequenced;
+    private volatile Thread pusher;
 
     public Replicator( MemoryStorage<I, T> slave, ReplicationMaster<I, T> master, long interval ) {
         this.slave = slave;
         this.master = master;
-        this.scheduled = Scheduler.scheduleWithFixedDelay( getClass(), interval, i -> {
-            var newLastModified = replicate( lastModified );
-            log.trace( "[{}] newLastModified = {}, lastModified = {}", serviceName, newLastModified, lastModified );
-            if( newLastModified._2.equals( lastModified._2 ) ) {
-                lastModified = newLastModified.map( ( t, m ) -> __( t + 1, m ) );
-            } else {
-                lastModified = newLastModified;
+        this.scheduled = Scheduler.scheduleWithFixedDelay( getClass(), interval, i -> replicateNext() );
+    }
+
+    /**
+     * @return true if the cursor has moved
+     */
+    private synchronized boolean replicateNext() {
+        var newLastSeq = replicate( lastSeq );
+        log.trace( "[{}] newLastSeq = {}, lastSeq = {}", serviceName, newLastSeq, lastSeq );
+        var moved = newLastSeq != lastSeq;
+        lastSeq = newLastSeq;
+        return moved;
+    }
+
+    /**
+     * Starts push mode: a thread long polls {@link ReplicationMaster#awaitChangedAfter(long, long)} and replicates
+     * as soon as the master has changes. The scheduled replication remains as a fallback for missed notifications
+     * and changes not visible yet when notified, so its interval can be long.
+     */
+    public synchronized void push( long timeout ) {
+        if( pusher != null ) return;
+        if( !master.supportsPush() ) {
+            log.warn( "[{}] master does not support push replication, polling only", serviceName );
+            return;
+        }
+        var thread = new Thread( () -> {
+            // sequence number of the master, the cursor can stay behind it, e.g. while the master is empty
+            long masterSeq = lastSeq;
+            while( pusher == Thread.currentThread() ) {
+                try {
+                    long seq = master.awaitChangedAfter( masterSeq, timeout );
+                    if( seq > masterSeq ) {
+                        replicateNext();
+                        masterSeq = seq;
+                    }
+                } catch( Exception e ) {
+                    if( pusher != Thread.currentThread() ) return;
+                    log.error( "[{}] push replication: {}", serviceName, e.getMessage() );
+                    try {
+                        Thread.sleep( timeout );
+                    } catch( InterruptedException ie ) {
+                        return;
+                    }
+                }
             }
-        } );
+        }, "replicator-push-" + serviceName );
+        thread.setDaemon( true );
+        pusher = thread;
+        thread.start();
+    }
+
+    private synchronized void shutdownPool() {
+        if( pool != null ) pool.shutdown();
+        pool = null;
+    }
+
+    private void stopPush() {
+        var thread = pusher;
+        pusher = null;
+        if( thread != null ) thread.interrupt();
     }
 
     public static void reset() {
@@ -86,19 +163,19 @@ public class Replicator<I, T> implements Closeable {
     }
 
     public void replicateAllNow() {
-        lastModified = __( -1L, "" );
+        lastSeq = -1;
+        reconciledPurge = Long.MIN_VALUE;
         replicateNow();
     }
 
-    public synchronized Pair<Long, String> replicate( Pair<Long, String> last ) {
+    /**
+     * @param last cursor returned by the previous call, -1 to replicate everything
+     */
+    public synchronized long replicate( long last ) {
         log.trace( "replicate service {} last {}", serviceName, last );
 
-        List<Metadata<T>> newUpdates;
-
-        try( var updates = master.updatedSince( last._1 ) ) {
-            log.trace( "[{}] replicate {} to {} last: {}", master, slave, last, serviceName );
-            newUpdates = updates.collect( toList() );
-            log.trace( "[{}] updated objects {}", serviceName, newUpdates.size() );
+        try {
+            return sequenced() ? replicateChanges( last ) : replicateModified( last );
         } catch( RemoteInvocationException e ) {
             if( e.getCause() instanceof SocketException ) {
                 log.error( e.getCause().getMessage() );
@@ -109,79 +186,175 @@ public class Replicator<I, T> implements Closeable {
             log.error( e.getCause().getMessage() );
             return last;
         }
+    }
+
+    private boolean sequenced() {
+        if( sequenced == null ) sequenced = master.sequenced();
+        return sequenced;
+    }
+
+    private long replicateChanges( long last ) {
+        long cursor = last;
+        long purgedBefore = master.purgedSeq();
+        while( true ) {
+            log.trace( "[{}] replicate {} to {} after: {}", serviceName, master, slave, cursor );
+            var page = fetch( cursor );
+            log.trace( "[{}] changed objects {}", serviceName, page.size() );
+            for( var metadata : page ) cursor = Math.max( cursor, metadata.seq );
+            apply( page );
+            if( page.size() < batchSize ) break;
+        }
+        long purgedAfter = master.purgedSeq();
 
-        var added = new ArrayList<IdObject<I, T>>();
-        var updated = new ArrayList<IdObject<I, T>>();
+        var now = DateTimeUtils.currentTimeMillis();
+        if( Math.max( last, reconciledPurge ) < purgedAfter || now - reconciled >= reconciliationInterval ) {
+            reconciled = now;
+            var ids = new HashSet<>( master.ids() );
+            if( ids.isEmpty() ) cursor = -1;
+            // ids reflect every removal up to purgedBefore, as they are read after it. The cursor stays,
+            // changes before purgedBefore which were not visible to the pages are still to be pulled
+            reconciledPurge = purgedBefore;
+            reconcile( ids );
+        }
 
-        var lastUpdate = newUpdates.stream().mapToLong( m -> m.modified ).max().orElse( last._1 );
+        return cursor;
+    }
 
-        var hasher = Hashing.murmur3_128().newHasher();
+    /**
+     * Fallback for masters which are not {@link ReplicationMaster#sequenced()}, the cursor is a modification time.
+     * Objects modified at the last seen millisecond are pulled again, as more can be modified within it,
+     * and skipped as unmodified. Removals are found by comparing ids on every pull.
+     */
+    private long replicateModified( long last ) {
+        List<Metadata<T>> updates;
+        try( var stream = master.updatedSince( last ) ) {
+            updates = stream.collect( toList() );
+        }
+        var ids = new HashSet<>( master.ids() );
+        log.trace( "[{}] updated objects {}", serviceName, updates.size() );
+        long cursor = last;
+        for( var metadata : updates ) cursor = Math.max( cursor, metadata.modified );
+        apply( updates );
+        reconcile( ids );
+        return ids.isEmpty() ? -1 : cursor;
+    }
 
-        var finalLastUpdate = lastUpdate;
-        var list = newUpdates
-            .stream()
-            .filter( metadata -> metadata.modified == finalLastUpdate )
-            .map( metadata -> slave.identifier.get( metadata.object ).toString() )
-            .sorted()
-            .collect( toList() );
+    private void reconcile( Set<I> ids ) {
+        log.trace( "[{}] reconciling with {} master ids", serviceName, ids.size() );
+        var deleted = new ArrayList<IdObject<I, T>>();
+        slave.memory.selectLiveIds()
+            .filter( id -> !ids.contains( id ) )
+            .toList()
+            .forEach( id -> slave.memory.removePermanently( id ).ifPresent( m -> deleted.add( __io( id, m.object ) ) ) );
+        log.trace( "[{}] deleted {}", serviceName, deleted );
+        fire( List.of(), List.of(), deleted );
+    }
 
-        for( var id : list ) {
-            hasher = hasher.putUnencodedChars( id );
+    private List<Metadata<T>> fetch( long cursor ) {
+        var codec = this.codec;
+        if( codec != null ) {
+            var payload = master.changedAfterEncoded( cursor, batchSize );
+            if( payload != null ) return codec.decode( payload );
         }
-        var hash = hasher.hash().toString();
+        try( var updates = master.changedAfter( cursor, batchSize ) ) {
+            return updates.collect( toList() );
+        }
+    }
 
+    private void apply( List<Metadata<T>> page ) {
+        var parallelism = this.parallelism;
+        Applied applied;
+        if( parallelism > 1 && page.size() >= parallelThreshold ) {
+            var pool = pool( parallelism );
+            var ids = pool.submit( () -> page.parallelStream().map( m -> slave.identifier.get( m.object ) ).collect( toList() ) ).join();
+            // ids are unique within a page, bucketing by id keeps the per object order anyway
+            var buckets = new ArrayList<List<Integer>>( parallelism );
+            for( int b = 0; b < parallelism; b++ ) buckets.add( new ArrayList<>( page.size() / parallelism + 1 ) );
+            for( int i = 0; i < page.size(); i++ ) buckets.get( Math.floorMod( ids.get( i ).hashCode(), parallelism ) ).add( i );
+            var parts = pool.submit( () -> buckets.parallelStream()
+                    .map( bucket -> {
+                        var part = new Applied();
+                        for( int i : bucket ) apply( page.get( i ), ids.get( i ), part );
+                        return part;
+                    } )
+                    .collect( toList() ) )
+                .join();
+            applied = new Applied();
+            for( var part : parts ) applied.merge( part );
+        } else {
+            applied = new Applied();
+            for( var metadata : page ) apply( metadata, slave.identifier.get( metadata.object ), applied );
+        }
 
-        if( lastUpdate != last._1 || !hash.equals( last._2 ) ) {
-            for( var metadata : newUpdates ) {
-                log.trace( "[{}] replicate {}", metadata, serviceName );
+        stored.addAndGet( applied.stored );
+        fire( applied.added, applied.updated, applied.deleted );
+    }
 
-                var id = slave.identifier.get( metadata.object );
-                var unmodified = slave.memory.get( id ).map( m -> m.looksUnmodified( metadata ) ).orElse( false );
-                if( unmodified ) {
-                    log.trace( "[{}] skipping unmodified {}", serviceName, id );
-                    continue;
-                }
-                if( slave.memory.put( id, Metadata.from( metadata ) ) ) added.add( __io( id, metadata.object ) );
-                else updated.add( __io( id, metadata.object ) );
-            }
-            slave.fireAdded( added );
-            slave.fireUpdated( updated );
+    private void apply( Metadata<T> metadata, I id, Applied applied ) {
+        log.trace( "[{}] replicate {}", serviceName, metadata );
 
-            stored.addAndGet( newUpdates.size() );
+        if( metadata.isDeleted() ) {
+            slave.memory.removePermanently( id ).ifPresent( m -> applied.deleted.add( __io( id, m.object ) ) );
+            return;
         }
+        applied.stored++;
+        var unmodified = slave.memory.get( id ).map( m -> m.looksUnmodified( metadata ) ).orElse( false );
+        if( unmodified ) {
+            log.trace( "[{}] skipping unmodified {}", serviceName, id );
+            return;
+        }
+        if( slave.memory.put( id, Metadata.from( metadata ) ) ) applied.added.add( __io( id, metadata.object ) );
+        else applied.updated.add( __io( id, metadata.object ) );
+    }
 
-        var ids = master.ids();
-        log.trace( "[{}] master ids {}", serviceName, ids );
-        if( ids.isEmpty() ) lastUpdate = -1;
+    private synchronized ForkJoinPool pool( int parallelism ) {
+        if( pool == null || pool.getParallelism() != parallelism ) {
+            if( pool != null ) pool.shutdown();
+            pool = new ForkJoinPool( parallelism );
+        }
+        return pool;
+    }
 
-        List<IdObject<I, T>> deleted = slave.memory.selectLiveIds()
-            .filter( id -> !ids.contains( id ) )
-            .map( id -> slave.memory.removePermanently( id ).map( m -> __io( id, m.object ) ) )
-            .filter( Optional::isPresent )
-            .map( Optional::get )
-            .toList();
-        log.trace( "[{}] deleted {}", serviceName, deleted );
+    private void fire( List<IdObject<I, T>> added, List<IdObject<I, T>> updated, List<IdObject<I, T>> deleted ) {
+        slave.fireAdded( added );
+        slave.fireUpdated( updated );
         slave.fireDeleted( deleted );
         if( !added.isEmpty() || !updated.isEmpty() || !deleted.isEmpty() ) {
             slave.fireChanged( added, updated, deleted );
         }
-
         Replicator.deleted.addAndGet( deleted.size() );
-
-        return __( lastUpdate, hash );
     }
 
     public void preStop() {
+        stopPush();
+        shutdownPool();
         Scheduled.cancel( scheduled );
         scheduled = null;
     }
 
     @Override
     public void close() {
+        stopPush();
+        shutdownPool();
         try {
             Scheduled.cancel( scheduled );
         } catch( Exception e ) {
             log.error( e.getMessage(), e );
         }
     }
+
+    private class Applied {
+        final List<IdObject<I, T>> added = new ArrayList<>();
+        final List<IdObject<I, T>> updated = new ArrayList<>();
+        final List<IdObject<I, T>> deleted = new ArrayList<>();
+        int stored;
+
+        Applied merge( Applied other ) {
+            added.addAll( other.added );
+            updated.addAll( other.updated );
+            deleted.addAll( other.deleted );
+            stored += other.stored;
+            return this;
+        }
+    }
 }
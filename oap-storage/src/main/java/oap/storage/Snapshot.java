@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.util.Pair;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static oap.util.Pair.__;
+
+/**
+ * Immutable view of a {@link MemoryStorage} as of {@link #seq()}. Opening it copies nothing, writers keep
+ * the versions it can see linked from the new ones while it is open. Objects permanently removed meanwhile
+ * are kept by the snapshot itself. Must be closed.
+ * <p>
+ * Over {@link OffHeapMetadataMap}, which keeps no previous versions, it degrades to a view of the current state.
+ */
+public class Snapshot<I, T> implements AutoCloseable {
+    private final MemoryStorage.Memory<T, I> memory;
+    private final Map<I, Metadata<T>> removed = new ConcurrentHashMap<>();
+    private final boolean isolated;
+    volatile long seq;
+
+    Snapshot( MemoryStorage.Memory<T, I> memory ) {
+        this.memory = memory;
+        this.isolated = !( memory.data instanceof OffHeapMetadataMap<?, ?> );
+        // registered before reading the seq, so every later change keeps the versions this snapshot needs
+        memory.snapshots.add( this );
+        this.seq = memory.lastSeq();
+    }
+
+    /**
+     * @return the last {@link Metadata#seq} visible in this snapshot
+     */
+    public long seq() {
+        return seq;
+    }
+
+    void retire( I id, Metadata<T> m ) {
+        if( isolated && version( m ) != null ) removed.putIfAbsent( id, m );
+    }
+
+    private Metadata<T> version( Metadata<T> m ) {
+        if( !isolated ) return m;
+        long seq = this.seq;
+        while( m != null && m.seq > seq ) m = m.previous;
+        return m;
+    }
+
+    public Optional<Metadata<T>> getMetadata( @Nonnull I id ) {
+        var m = version( memory.data.get( id ) );
+        if( m == null ) m = version( removed.get( id ) );
+        return Optional.ofNullable( m );
+    }
+
+    public Optional<T> get( @Nonnull I id ) {
+        return getMetadata( id ).filter( m -> !m.isDeleted() ).map( m -> m.object );
+    }
+
+    /**
+     * @return all objects as of {@link #seq()}, including deleted ones
+     */
+    public Stream<Pair<I, Metadata<T>>> selectAll() {
+        return Stream.concat( memory.data.entrySet().stream(), removed.entrySet().stream() )
+            .map( e -> __( e.getKey(), version( e.getValue() ) ) )
+            .filter( p -> p._2 != null );
+    }
+
+    public Stream<T> select() {
+        return selectAll()
+            .filter( p -> !p._2.isDeleted() )
+            .map( p -> p._2.object );
+    }
+
+    @Override
+    public void close() {
+        memory.close( this );
+    }
+}
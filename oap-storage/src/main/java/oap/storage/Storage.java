@@ -23,6 +23,8 @@
  */
 package oap.storage;
 
+import com.google.common.util.concurrent.Striped;
+import io.micrometer.core.instrument.Timer;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import oap.concurrent.Threads;
@@ -32,9 +34,12 @@ import oap.util.Stream;
 import javax.annotation.Nonnull;
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -47,6 +52,13 @@ public interface Storage<I, T> extends Iterable<T> {
 
     Optional<T> get( @Nonnull I id );
 
+    /**
+     * Same as {@link #get(Object)} without wrapping, implementations may avoid allocation.
+     */
+    default T getOrNull( @Nonnull I id ) {
+        return get( id ).orElse( null );
+    }
+
     T get( I id, @Nonnull Supplier<T> init );
 
     long size();
@@ -61,10 +73,41 @@ public interface Storage<I, T> extends Iterable<T> {
 
     T update( I id, @Nonnull Function<T, T> update, @Nonnull Supplier<T> init );
 
+    /**
+     * Applies all updates, implementations may notify listeners once.
+     *
+     * @return updated objects, absent ids are skipped
+     */
+    default List<T> update( @Nonnull Map<I, Function<T, T>> updates ) {
+        var updated = new ArrayList<T>();
+        updates.forEach( ( id, update ) -> update( id, update ).ifPresent( updated::add ) );
+        return updated;
+    }
+
     Optional<T> delete( @Nonnull I id );
 
+    /**
+     * Deletes all objects, implementations may notify listeners once.
+     *
+     * @return deleted objects, absent ids are skipped
+     */
+    default List<T> delete( @Nonnull Collection<I> ids ) {
+        var deleted = new ArrayList<T>();
+        for( I id : ids ) delete( id ).ifPresent( deleted::add );
+        return deleted;
+    }
+
     Optional<T> permanentlyDelete( @Nonnull I id );
 
+    /**
+     * @return deleted objects, absent ids are skipped
+     */
+    default List<T> permanentlyDelete( @Nonnull Collection<I> ids ) {
+        var deleted = new ArrayList<T>();
+        for( I id : ids ) permanentlyDelete( id ).ifPresent( deleted::add );
+        return deleted;
+    }
+
     void deleteAll();
 
     void addDataListener( DataListener<I, T> dataListener );
@@ -100,6 +143,10 @@ public interface Storage<I, T> extends Iterable<T> {
 
         default void permanentlyDeleted( IdObject<DI, D> object ) {}
 
+        default void permanentlyDeleted( List<IdObject<DI, D>> objects ) {
+            objects.forEach( this::permanentlyDeleted );
+        }
+
         /**
          * The method is called once per replication period, all changes there are gathered.
          *
@@ -143,6 +190,7 @@ public interface Storage<I, T> extends Iterable<T> {
     interface Lock {
         Lock CONCURRENT = new ConcurrentLock();
         Lock SERIALIZED = new SerializedLock();
+        Lock STRIPED = new StripedLock( 1024 );
 
         void synchronizedOn( Object id, Runnable run );
 
@@ -171,5 +219,78 @@ public interface Storage<I, T> extends Iterable<T> {
                 return Threads.synchronizedOn( id, run );
             }
         }
+
+        /**
+         * Per-id mutual exclusion over a fixed number of reentrant locks, ids are hashed to a stripe.
+         * Unlike {@link SerializedLock} it does not intern ids and its memory is bounded.
+         * Different ids may share a stripe, so nested locks on different ids may deadlock and are not supported,
+         * the storage itself never nests them.
+         */
+        class StripedLock implements Lock {
+            private final Striped<java.util.concurrent.locks.Lock> stripes;
+
+            public StripedLock( int stripes ) {
+                this.stripes = Striped.lock( stripes );
+            }
+
+            @Override
+            public final void synchronizedOn( Object id, Runnable run ) {
+                var lock = stripes.get( id );
+                lock.lock();
+                try {
+                    run.run();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public final <R> R synchronizedOn( Object id, Supplier<R> run ) {
+                var lock = stripes.get( id );
+                lock.lock();
+                try {
+                    return run.get();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Records the time spent waiting for the underlying lock. Acquisitions nested in another one on the same
+         * thread, like the storage memory locking under the storage, are not recorded.
+         */
+        class TimedLock implements Lock {
+            private final Lock lock;
+            private final Timer wait;
+            private final ThreadLocal<int[]> depth = ThreadLocal.withInitial( () -> new int[1] );
+
+            public TimedLock( Lock lock, Timer wait ) {
+                this.lock = lock;
+                this.wait = wait;
+            }
+
+            @Override
+            public final void synchronizedOn( Object id, Runnable run ) {
+                synchronizedOn( id, () -> {
+                    run.run();
+                    return null;
+                } );
+            }
+
+            @Override
+            public final <R> R synchronizedOn( Object id, Supplier<R> run ) {
+                var depth = this.depth.get();
+                long start = depth[0] == 0 ? System.nanoTime() : 0;
+                return lock.synchronizedOn( id, () -> {
+                    if( depth[0]++ == 0 ) wait.record( System.nanoTime() - start, TimeUnit.NANOSECONDS );
+                    try {
+                        return run.get();
+                    } finally {
+                        depth[0]--;
+                    }
+                } );
+            }
+        }
     }
 }
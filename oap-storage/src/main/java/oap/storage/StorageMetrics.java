@@ -27,34 +27,62 @@ package oap.storage;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tags;
 import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import oap.concurrent.scheduler.Scheduled;
+import oap.concurrent.scheduler.Scheduler;
+import org.openjdk.jol.info.ClassLayout;
 import org.openjdk.jol.info.GraphLayout;
 
+import java.io.Closeable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
-@ToString
-public class StorageMetrics<I, T> implements Storage.DataListener<I, T> {
+@Slf4j
+@ToString( exclude = "scheduled" )
+public class StorageMetrics<I, T> implements Storage.DataListener<I, T>, Closeable {
     private final String storageName;
     private final Storage<I, T> storage;
     private final Map<String, Meter<I, T>> metrics = new HashMap<>();
+    private final Memory<I, T> memory = new Memory<>();
+    /**
+     * Interval of the full object graph walk for {@code oap_storage_memory} of storages without a {@link Sizer},
+     * 0 disables it.
+     */
+    public long memoryRecomputeInterval = 5 * 60 * 1000;
+    private Scheduled scheduled;
 
     public StorageMetrics( Storage<I, T> storage, String name ) {
         this.storage = storage;
         this.storageName = name;
         this.metrics.put( "oap_storage_total", new Count<>() );
-        this.metrics.put( "oap_storage_memory", new Memory<>() );
+        this.metrics.put( "oap_storage_tombstones", new Tombstones<>() );
+        this.metrics.put( "oap_storage_memory", memory );
     }
 
     public void start() {
         refresh();
+        memory.recompute( storage );
 
         storage.addDataListener( this );
 
         this.metrics.forEach( ( mname, metric ) ->
             Metrics.gauge( mname, Tags.of( "storage", storageName ), metric, m -> ( double ) m.value() ) );
+
+        if( memoryRecomputeInterval > 0 )
+            scheduled = Scheduler.scheduleWithFixedDelay( getClass(), memoryRecomputeInterval, i -> memory.recompute( storage ) );
+    }
+
+    @Override
+    public void close() {
+        storage.removeDataListener( this );
+        try {
+            Scheduled.cancel( scheduled );
+        } catch( Exception e ) {
+            log.error( e.getMessage(), e );
+        }
     }
 
     @Override
@@ -94,16 +122,45 @@ public class StorageMetrics<I, T> implements Storage.DataListener<I, T> {
         }
     }
 
+    public static class Tombstones<I, T> implements Meter<I, T> {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void accept( Storage<I, T> storage ) {
+            if( storage instanceof MemoryStorage<?, ?> ) {
+                count.set( ( ( MemoryStorage<I, T> ) storage ).memory.tombstones() );
+            } else count.set( 0 );
+        }
+
+        @Override
+        public long value() {
+            return count.get();
+        }
+    }
+
+    /**
+     * Incremental estimate for storages with a {@link Sizer}, otherwise a periodic full object graph walk.
+     */
     public static class Memory<I, T> implements Meter<I, T> {
+        /**
+         * {@link Metadata} and a {@link java.util.concurrent.ConcurrentHashMap} node per entry
+         */
+        private static final long ENTRY_SIZE = ClassLayout.parseClass( Metadata.class ).instanceSize() + 32;
         private final AtomicLong size = new AtomicLong();
 
         @Override
         public void accept( Storage<I, T> storage ) {
             if( storage instanceof MemoryStorage<?, ?> ) {
-                size.set( GraphLayout.parseInstance( ( ( MemoryStorage<I, T> ) storage ).memory.data ).totalSize() );
+                var memory = ( ( MemoryStorage<I, T> ) storage ).memory;
+                if( memory.sizer() != null ) size.set( memory.bytes() + memory.data.size() * ENTRY_SIZE );
             } else size.set( 0 );
         }
 
+        public void recompute( Storage<I, T> storage ) {
+            if( storage instanceof MemoryStorage<?, ?> && ( ( MemoryStorage<I, T> ) storage ).memory.sizer() == null )
+                size.set( GraphLayout.parseInstance( ( ( MemoryStorage<I, T> ) storage ).memory.data ).totalSize() );
+        }
+
         @Override
         public long value() {
             return size.get();
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency histograms of {@link MemoryStorage} operations, see {@link MemoryStorage#withMetrics(String)}.
+ * Timer counts double as throughput.
+ */
+public class StorageTimers {
+    public static final String OPERATION = "oap_storage_operation";
+    public static final String LOCK_WAIT = "oap_storage_lock_wait";
+    public static final String LISTENER_DISPATCH = "oap_storage_listener_dispatch";
+
+    public final Timer get;
+    public final Timer store;
+    public final Timer update;
+    public final Timer delete;
+    public final Timer select;
+    private final String storageName;
+    private final ConcurrentMap<Class<?>, Timer> listeners = new ConcurrentHashMap<>();
+
+    public StorageTimers( String storageName ) {
+        this.storageName = storageName;
+        this.get = operation( "get" );
+        this.store = operation( "store" );
+        this.update = operation( "update" );
+        this.delete = operation( "delete" );
+        this.select = operation( "select" );
+    }
+
+    /**
+     * Lock wait is recorded by a {@link Storage.Lock.TimedLock} the storage is created with.
+     */
+    public static Timer lockWait( String storageName ) {
+        return timer( LOCK_WAIT, Tags.of( "storage", storageName ) );
+    }
+
+    public Timer listener( Storage.DataListener<?, ?> listener ) {
+        return listeners.computeIfAbsent( listener.getClass(),
+            c -> timer( LISTENER_DISPATCH, Tags.of( "storage", storageName, "listener", c.getName() ) ) );
+    }
+
+    private Timer operation( String operation ) {
+        return timer( OPERATION, Tags.of( "storage", storageName, "operation", operation ) );
+    }
+
+    private static Timer timer( String name, Tags tags ) {
+        return Timer.builder( name )
+            .tags( tags )
+            .publishPercentileHistogram()
+            .register( Metrics.globalRegistry );
+    }
+}
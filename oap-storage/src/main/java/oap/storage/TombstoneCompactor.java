@@ -0,0 +1,72 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import oap.concurrent.scheduler.Scheduled;
+import oap.concurrent.scheduler.Scheduler;
+import org.joda.time.DateTimeUtils;
+
+import java.io.Closeable;
+
+/**
+ * Periodically purges tombstones of a storage, for storages whose tombstones are not purged by a persistence.
+ * Tombstones are kept for {@code retention} milliseconds after the deletion and, when the storage is persisted,
+ * until the deletion is persisted.
+ */
+@Slf4j
+public class TombstoneCompactor<I, T> implements Closeable {
+    private final MemoryStorage<I, T> storage;
+    private final long retention;
+    public int batchSize = 1000;
+    private final Scheduled scheduled;
+
+    public TombstoneCompactor( MemoryStorage<I, T> storage, long retention, long interval ) {
+        this.storage = storage;
+        this.retention = retention;
+        this.scheduled = Scheduler.scheduleWithFixedDelay( getClass(), interval, i -> compact() );
+    }
+
+    public int compact() {
+        long deletedBefore = DateTimeUtils.currentTimeMillis() - retention;
+        int total = 0;
+        int purged;
+        do {
+            purged = storage.memory.purgeTombstones( deletedBefore, batchSize );
+            total += purged;
+        } while( purged == batchSize );
+        if( total > 0 ) log.trace( "purged {} tombstone(s), {} left", total, storage.memory.tombstones() );
+        return total;
+    }
+
+    @Override
+    public void close() {
+        try {
+            Scheduled.cancel( scheduled );
+        } catch( Exception e ) {
+            log.error( e.getMessage(), e );
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.id.Identifier;
+import oap.util.Lists;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static oap.storage.AsyncDataListener.Backpressure.BLOCK;
+import static oap.storage.AsyncDataListener.Backpressure.CALLER_RUNS;
+import static oap.storage.Storage.Lock.SERIALIZED;
+import static oap.testng.Asserts.assertEventually;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncDataListenerTest {
+    @Test
+    public void coalesce() throws InterruptedException {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var release = new CountDownLatch( 1 );
+        List<String> events = new CopyOnWriteArrayList<>();
+        try( var listener = new AsyncDataListener<>( new Storage.DataListener<String, Bean>() {
+            @Override
+            public void added( List<IdObject<String, Bean>> objects ) {
+                await( release );
+                events.addAll( Lists.map( objects, io -> "a" + io.id + io.object.s ) );
+            }
+
+            @Override
+            public void deleted( List<IdObject<String, Bean>> objects ) {
+                events.addAll( Lists.map( objects, io -> "d" + io.id ) );
+            }
+        }, 100, BLOCK ) ) {
+            storage.addDataListener( listener );
+
+            storage.store( new Bean( "0" ) );
+            assertEventually( 10, 100, () -> assertThat( listener.depth() ).isEqualTo( 0 ) );
+            storage.store( new Bean( "1" ) );
+            storage.store( new Bean( "1", "b" ) );
+            storage.store( new Bean( "2" ) );
+            storage.delete( "2" );
+            assertThat( listener.depth() ).isEqualTo( 2 );
+            release.countDown();
+
+            assertEventually( 10, 100, () -> assertThat( events ).containsExactly( "a0aaa", "a1b", "d2" ) );
+        }
+    }
+
+    @Test
+    public void callerRuns() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        List<String> events = new CopyOnWriteArrayList<>();
+        try( var listener = new AsyncDataListener<>( new Storage.DataListener<String, Bean>() {
+            @Override
+            public void added( List<IdObject<String, Bean>> objects ) {
+                events.addAll( Lists.map( objects, io -> io.id ) );
+            }
+        }, 1, CALLER_RUNS ) ) {
+            storage.addDataListener( listener );
+            for( int i = 0; i < 100; i++ ) storage.store( new Bean( String.valueOf( i ) ) );
+
+            assertEventually( 10, 100, () -> assertThat( events ).hasSize( 100 ) );
+        }
+    }
+
+    @Test
+    public void failureAndClose() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        List<String> events = new CopyOnWriteArrayList<>();
+        var listener = new AsyncDataListener<>( new Storage.DataListener<String, Bean>() {
+            @Override
+            public void added( List<IdObject<String, Bean>> objects ) {
+                throw new IllegalStateException( "failed" );
+            }
+
+            @Override
+            public void deleted( List<IdObject<String, Bean>> objects ) {
+                events.addAll( Lists.map( objects, io -> "d" + io.id ) );
+            }
+        }, 100, BLOCK );
+        storage.addDataListener( listener );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ) ) );
+        storage.delete( "2" );
+        listener.close();
+        assertThat( events ).containsExactly( "d2" );
+
+        storage.store( new Bean( "3" ) );
+        storage.delete( "3" );
+        assertThat( listener.depth() ).isEqualTo( 0 );
+        assertThat( events ).containsExactly( "d2" );
+    }
+
+    private static void await( CountDownLatch latch ) {
+        try {
+            latch.await();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
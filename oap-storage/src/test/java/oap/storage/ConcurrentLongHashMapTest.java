@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentLongHashMapTest {
+    @Test
+    public void sameAsHashMap() {
+        var map = new ConcurrentLongHashMap<String>( 4, 4 );
+        var expected = new HashMap<Long, String>();
+        var random = new Random( 42 );
+        for( int i = 0; i < 100000; i++ ) {
+            long key = random.nextInt( 2000 ) - 1000;
+            switch( random.nextInt( 4 ) ) {
+                case 0 -> assertThat( map.put( key, "v" + i ) ).isEqualTo( expected.put( key, "v" + i ) );
+                case 1 -> assertThat( map.remove( key ) ).isEqualTo( expected.remove( key ) );
+                case 2 -> assertThat( map.computeIfPresent( key, ( k, v ) -> v.length() > 4 ? null : v + "c" ) )
+                    .isEqualTo( expected.computeIfPresent( key, ( k, v ) -> v.length() > 4 ? null : v + "c" ) );
+                default -> assertThat( map.get( key ) ).isEqualTo( expected.get( key ) );
+            }
+        }
+        assertThat( map.size() ).isEqualTo( expected.size() );
+        assertThat( Map.copyOf( map ) ).isEqualTo( expected );
+
+        map.clear();
+        assertThat( map ).isEmpty();
+        assertThat( map.get( 1L ) ).isNull();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.id.Identifier;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static oap.storage.Storage.Lock.SERIALIZED;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FrozenStorageTest {
+    @Test
+    public void swap() {
+        var storage = new FrozenStorage<>( Identifier.<Bean>forId( b -> b.id ).build() );
+        storage.swap( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) ) );
+
+        assertThat( storage.getOrNull( "2" ) ).isEqualTo( new Bean( "2" ) );
+        assertThat( storage.getOrNull( "4" ) ).isNull();
+        assertThat( storage.size() ).isEqualTo( 3 );
+        assertThat( storage.list() ).containsOnly( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) );
+
+        storage.swap( List.of( new Bean( "4" ) ) );
+        assertThat( storage.getOrNull( "2" ) ).isNull();
+        assertThat( storage.get( "4" ) ).contains( new Bean( "4" ) );
+
+        storage.swap( List.of() );
+        assertThat( storage.getOrNull( "4" ) ).isNull();
+        assertThat( storage.size() ).isZero();
+    }
+
+    @Test
+    public void readOnly() {
+        var storage = new FrozenStorage<>( Identifier.<Bean>forId( b -> b.id ).build() );
+        assertThatThrownBy( () -> storage.store( new Bean( "1" ) ) ).isInstanceOf( UnsupportedOperationException.class );
+        assertThatThrownBy( () -> storage.delete( "1" ) ).isInstanceOf( UnsupportedOperationException.class );
+    }
+
+    @Test
+    public void replicate() {
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var slave = new FrozenStorage<>( Identifier.<Bean>forId( b -> b.id ).build() );
+        var changes = new AtomicInteger();
+        slave.addDataListener( new Storage.DataListener<>() {
+            @Override
+            public void changed( List<IdObject<String, Bean>> added, List<IdObject<String, Bean>> updated, List<IdObject<String, Bean>> deleted ) {
+                changes.addAndGet( added.size() + updated.size() + deleted.size() );
+            }
+        } );
+
+        try( var replicator = new FrozenReplicator<>( slave, master, 5000 ) ) {
+            master.store( new Bean( "1" ) );
+            master.store( new Bean( "2" ) );
+            assertThat( replicator.replicate() ).isEqualTo( 2 );
+            assertThat( slave.list() ).containsOnly( new Bean( "1" ), new Bean( "2" ) );
+
+            assertThat( replicator.replicate() ).isZero();
+
+            master.store( new Bean( "2", "bbb" ) );
+            master.delete( "1" );
+            assertThat( replicator.replicate() ).isEqualTo( 2 );
+            assertThat( slave.getOrNull( "1" ) ).isNull();
+            assertThat( slave.getOrNull( "2" ) ).isEqualTo( new Bean( "2", "bbb" ) );
+            assertThat( changes.get() ).isEqualTo( 4 );
+        }
+    }
+
+    @Test
+    public void replicatePaged() {
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var slave = new FrozenStorage<>( Identifier.<Bean>forId( b -> b.id ).build() );
+        slave.batchSize = 2;
+        for( int i = 0; i < 5; i++ ) master.store( new Bean( String.valueOf( i ) ) );
+
+        assertThat( slave.replicate( master ) ).isEqualTo( 5 );
+        assertThat( slave.size() ).isEqualTo( 5 );
+
+        master.permanentlyDelete( "1" );
+        master.store( new Bean( "2", "b" ) );
+        assertThat( slave.replicate( master ) ).isEqualTo( 2 );
+        assertThat( slave.list() ).containsOnly( new Bean( "0" ), new Bean( "2", "b" ), new Bean( "3" ), new Bean( "4" ) );
+        assertThat( slave.replicate( master ) ).isZero();
+    }
+}
@@ -24,19 +24,29 @@
 
 package oap.storage;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import oap.benchmark.Benchmark;
 import oap.id.Identifier;
 import oap.id.IntIdentifier;
+import oap.util.Lists;
+import org.joda.time.DateTimeUtils;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static oap.id.Identifier.Option.FILL;
 import static oap.storage.Storage.Lock.SERIALIZED;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class MemoryStorageTest {
     @Test
@@ -127,6 +137,568 @@ public class MemoryStorageTest {
         );
     }
 
+    @Test
+    public void indexes() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( new Bean( "1", "a" ) );
+        storage.store( new Bean( "2", "b" ) );
+
+        var byS = storage.createUniqueIndex( "s", b -> b.s );
+        var byLength = storage.createIndex( "length", b -> b.s.length() );
+
+        storage.store( new Bean( "3", "cc" ) );
+        assertThat( storage.getBy( byS, "a" ) ).contains( new Bean( "1", "a" ) );
+        assertThat( storage.getBy( byS, "cc" ) ).contains( new Bean( "3", "cc" ) );
+        assertThat( storage.selectBy( byLength, 1 ) ).containsOnly( new Bean( "1", "a" ), new Bean( "2", "b" ) );
+
+        storage.update( "1", b -> {
+            b.s = "aa";
+            return b;
+        } );
+        assertThat( storage.getBy( byS, "a" ) ).isEmpty();
+        assertThat( storage.getBy( byS, "aa" ) ).contains( new Bean( "1", "aa" ) );
+        assertThat( storage.selectBy( byLength, 2 ) ).containsOnly( new Bean( "1", "aa" ), new Bean( "3", "cc" ) );
+
+        storage.delete( "3" );
+        storage.permanentlyDelete( "2" );
+        assertThat( storage.getBy( byS, "cc" ) ).isEmpty();
+        assertThat( storage.getBy( byS, "b" ) ).isEmpty();
+        assertThat( byLength.get( 1 ) ).isEmpty();
+        assertThat( byLength.get( 2 ) ).containsOnly( "1" );
+
+        storage.store( new Bean( "4", "aa" ) );
+        storage.store( new Bean( "1", "x" ) );
+        assertThat( storage.getBy( byS, "aa" ) ).contains( new Bean( "4", "aa" ) );
+    }
+
+    @Test
+    public void size() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) ) );
+        storage.store( new Bean( "1", "b" ) );
+        assertThat( storage.size() ).isEqualTo( 3 );
+        assertThat( storage.memory.tombstones() ).isEqualTo( 0 );
+
+        storage.delete( "1" );
+        storage.delete( "1" );
+        assertThat( storage.size() ).isEqualTo( 2 );
+        assertThat( storage.memory.tombstones() ).isEqualTo( 1 );
+
+        storage.store( new Bean( "1" ) );
+        storage.permanentlyDelete( "2" );
+        assertThat( storage.size() ).isEqualTo( 2 );
+        assertThat( storage.memory.tombstones() ).isEqualTo( 0 );
+
+        storage.deleteAll();
+        assertThat( storage.size() ).isEqualTo( 0 );
+        assertThat( storage.memory.tombstones() ).isEqualTo( 2 );
+    }
+
+    @Test
+    public void updatedSince() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        try {
+            DateTimeUtils.setCurrentMillisFixed( 10 );
+            storage.store( new Bean( "1" ) );
+            storage.store( new Bean( "2" ) );
+            DateTimeUtils.setCurrentMillisFixed( 20 );
+            storage.store( new Bean( "3" ) );
+            storage.store( new Bean( "1", "b" ) );
+            DateTimeUtils.setCurrentMillisFixed( 30 );
+            storage.delete( "2" );
+
+            assertThat( storage.updatedSince( 20 ).map( m -> m.object ) )
+                .containsOnly( new Bean( "3" ), new Bean( "1", "b" ) );
+            assertThat( storage.updatedSince( 21 ) ).isEmpty();
+            assertThat( storage.updatedSince( Long.MIN_VALUE ).map( m -> m.object ) )
+                .containsOnly( new Bean( "3" ), new Bean( "1", "b" ) );
+            assertThat( storage.memory.selectUpdatedSince( 20 ).mapToObj( ( id, m ) -> id ) ).containsExactly( "2" );
+
+            storage.permanentlyDelete( "2" );
+            assertThat( storage.memory.selectUpdatedSince( 20 ).toList() ).isEmpty();
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void updatedSinceSkipsExpired() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        try {
+            DateTimeUtils.setCurrentMillisFixed( 100 );
+            storage.store( new Bean( "1" ), 10 );
+            storage.store( new Bean( "2" ) );
+
+            assertThat( storage.updatedSince( 100 ).map( m -> m.object ) ).containsOnly( new Bean( "1" ), new Bean( "2" ) );
+
+            DateTimeUtils.setCurrentMillisFixed( 110 );
+            assertThat( storage.updatedSince( 100 ).map( m -> m.object ) ).containsExactly( new Bean( "2" ) );
+            assertThat( storage.updatedSince( Long.MIN_VALUE ).map( m -> m.object ) ).containsExactly( new Bean( "2" ) );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void updatedAfter() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( new Bean( "1" ) );
+        storage.store( new Bean( "2" ) );
+        long cursor = storage.updatedAfter( -1 ).mapToLong( m -> m.seq ).max().orElseThrow();
+
+        storage.store( new Bean( "1", "b" ) );
+        storage.store( new Bean( "3" ) );
+        storage.delete( "2" );
+
+        var updates = storage.updatedAfter( cursor ).toList();
+        assertThat( Lists.map( updates, m -> m.object ) ).containsExactly( new Bean( "1", "b" ), new Bean( "3" ) );
+        assertThat( updates.get( 0 ).seq ).isEqualTo( cursor + 1 );
+        assertThat( updates.get( 1 ).seq ).isEqualTo( cursor + 2 );
+        assertThat( storage.memory.selectChangedAfter( cursor + 2 ).mapToObj( ( id, m ) -> id ) ).containsExactly( "2" );
+        assertThat( storage.updatedAfter( storage.memory.lastSeq() ) ).isEmpty();
+    }
+
+    @Test
+    public void changeLogLimit() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.setChangeLogLimit( 2 );
+        for( int i = 0; i < 5; i++ ) storage.store( new Bean( String.valueOf( i ) ) );
+        storage.store( new Bean( "1", "b" ) );
+        storage.delete( "3" );
+
+        var seen = new ArrayList<String>();
+        long cursor = -1;
+        List<Metadata<Bean>> page;
+        do {
+            page = storage.changedAfter( cursor, 2 ).toList();
+            for( var m : page ) {
+                assertThat( m.seq ).isGreaterThan( cursor );
+                cursor = m.seq;
+                seen.add( m.object.id );
+            }
+        } while( page.size() == 2 );
+
+        assertThat( seen ).containsExactly( "0", "2", "4", "1", "3" );
+        assertThat( cursor ).isEqualTo( storage.memory.lastSeq() );
+        assertThat( storage.changedAfter( -1 ).filter( Metadata::isDeleted ).map( m -> m.object.id ) ).containsExactly( "3" );
+    }
+
+    @Test
+    public void changedAfterConcurrently() throws InterruptedException {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var writers = new ArrayList<Thread>();
+        for( int t = 0; t < 4; t++ ) {
+            int thread = t;
+            writers.add( new Thread( () -> {
+                for( int i = 0; i < 2000; i++ ) storage.store( new Bean( thread + "-" + i ) );
+            } ) );
+        }
+        writers.forEach( Thread::start );
+
+        var seen = new HashSet<String>();
+        long cursor = -1;
+        boolean writing = true;
+        while( writing ) {
+            writing = writers.stream().anyMatch( Thread::isAlive );
+            for( var m : storage.changedAfter( cursor, 100 ).toList() ) {
+                assertThat( m.seq ).isGreaterThan( cursor );
+                cursor = m.seq;
+                seen.add( m.object.id );
+            }
+        }
+        for( var writer : writers ) writer.join();
+        for( var m : storage.changedAfter( cursor ).toList() ) seen.add( m.object.id );
+
+        assertThat( seen ).hasSize( 8000 );
+    }
+
+    @Test
+    public void fingerprint() {
+        var hashed = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var unhashed = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED, Fingerprint.NONE );
+        var versioned = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED,
+            Fingerprint.<Bean>version( b -> b.s.length() ) );
+        for( var storage : List.of( hashed, unhashed, versioned ) ) {
+            storage.store( new Bean( "1", "abc" ) );
+            storage.delete( "1" );
+        }
+
+        assertThat( hashed.memory.data.get( "1" ).hash ).isEqualTo( new Bean( "1", "abc" ).hashCode() );
+        assertThat( unhashed.memory.data.get( "1" ).hash ).isEqualTo( 0 );
+        assertThat( versioned.memory.data.get( "1" ).hash ).isEqualTo( 3 );
+
+        var m = unhashed.memory.data.get( "1" );
+        assertThat( m.looksUnmodified( Metadata.from( m ) ) ).isFalse();
+        var h = hashed.memory.data.get( "1" );
+        assertThat( h.looksUnmodified( Metadata.from( h ) ) ).isTrue();
+    }
+
+    @Test
+    public void compareAndSet() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        List<String> updated = new ArrayList<>();
+        storage.addDataListener( new Storage.DataListener<>() {
+            @Override
+            public void updated( List<IdObject<String, Bean>> objects ) {
+                objects.forEach( io -> updated.add( io.object.s ) );
+            }
+        } );
+        storage.store( new Bean( "1", "a" ) );
+        var v1 = storage.getVersioned( "1" ).orElseThrow();
+
+        assertThat( storage.compareAndSet( "1", v1.seq, new Bean( "1", "b" ) ) ).isTrue();
+        assertThat( storage.compareAndSet( "1", v1.seq, new Bean( "1", "c" ) ) ).isFalse();
+        assertThat( storage.get( "1" ) ).contains( new Bean( "1", "b" ) );
+
+        var v2 = storage.getVersioned( "1" ).orElseThrow();
+        assertThat( v2.object ).isEqualTo( new Bean( "1", "b" ) );
+        storage.delete( "1" );
+        assertThat( storage.compareAndSet( "1", v2.seq, new Bean( "1", "d" ) ) ).isFalse();
+        assertThat( storage.compareAndSet( "2", v2.seq, new Bean( "2", "d" ) ) ).isFalse();
+        assertThat( updated ).containsExactly( "b" );
+    }
+
+    @Test
+    public void bulk() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        List<List<String>> events = new ArrayList<>();
+        storage.addDataListener( new Storage.DataListener<>() {
+            @Override
+            public void updated( List<IdObject<String, Bean>> objects ) {
+                events.add( Lists.map( objects, io -> "u" + io.id ) );
+            }
+
+            @Override
+            public void deleted( List<IdObject<String, Bean>> objects ) {
+                events.add( Lists.map( objects, io -> "d" + io.id ) );
+            }
+
+            @Override
+            public void permanentlyDeleted( List<IdObject<String, Bean>> objects ) {
+                events.add( Lists.map( objects, io -> "p" + io.id ) );
+            }
+        } );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) ) );
+
+        assertThat( storage.update( Map.of(
+            "1", b -> new Bean( b.id, "b" ),
+            "2", b -> new Bean( b.id, "b" ),
+            "4", b -> new Bean( b.id, "b" ) ) ) )
+            .containsOnly( new Bean( "1", "b" ), new Bean( "2", "b" ) );
+        assertThat( storage.delete( List.of( "1", "4" ) ) ).containsExactly( new Bean( "1", "b" ) );
+        assertThat( storage.permanentlyDelete( List.of( "2", "3" ) ) ).containsExactly( new Bean( "2", "b" ), new Bean( "3" ) );
+
+        assertThat( storage.list() ).isEmpty();
+        assertThat( events ).hasSize( 3 );
+        assertThat( events.get( 0 ) ).containsOnly( "u1", "u2" );
+        assertThat( events.get( 1 ) ).containsExactly( "d1" );
+        assertThat( events.get( 2 ) ).containsExactly( "p2", "p3" );
+    }
+
+    @Test
+    public void sizer() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id, ( b, id ) -> b.id = id )
+            .suggestion( b -> b.s )
+            .build(), SERIALIZED );
+        storage.store( new Bean( "1", "aa" ) );
+        storage.setSizer( b -> b.s.length() );
+        assertThat( storage.memory.bytes() ).isEqualTo( 2 );
+
+        storage.store( new Bean( "2", "bbb" ) );
+        assertThat( storage.memory.bytes() ).isEqualTo( 5 );
+        storage.update( "1", b -> new Bean( b.id, "a" ) );
+        assertThat( storage.memory.bytes() ).isEqualTo( 4 );
+        storage.permanentlyDelete( "2" );
+        assertThat( storage.memory.bytes() ).isEqualTo( 1 );
+    }
+
+    @Test
+    public void metrics() {
+        var registry = new SimpleMeterRegistry();
+        Metrics.addRegistry( registry );
+        try {
+            var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(),
+                new Storage.Lock.TimedLock( SERIALIZED, StorageTimers.lockWait( "metrics-test" ) ) )
+                .withMetrics( "metrics-test" );
+            storage.addDataListener( new Storage.DataListener<>() {} );
+            storage.store( new Bean( "1" ) );
+            storage.get( "1" );
+            storage.delete( "1" );
+
+            assertThat( registry.get( StorageTimers.OPERATION ).tags( "storage", "metrics-test", "operation", "store" ).timer().count() ).isEqualTo( 1 );
+            assertThat( registry.get( StorageTimers.OPERATION ).tags( "storage", "metrics-test", "operation", "get" ).timer().count() ).isGreaterThanOrEqualTo( 1 );
+            assertThat( registry.get( StorageTimers.OPERATION ).tags( "storage", "metrics-test", "operation", "delete" ).timer().count() ).isEqualTo( 1 );
+            assertThat( registry.get( StorageTimers.LOCK_WAIT ).tags( "storage", "metrics-test" ).timer().count() ).isEqualTo( 2 );
+            assertThat( registry.get( StorageTimers.LISTENER_DISPATCH ).tags( "storage", "metrics-test" ).timer().count() ).isEqualTo( 2 );
+        } finally {
+            Metrics.removeRegistry( registry );
+        }
+    }
+
+    @Test
+    public void longIds() {
+        var storage = new LongMemoryStorage<>( Identifier.<LongBean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( List.of( new LongBean( 1L, "a" ), new LongBean( 2L, "b" ) ) );
+        storage.update( 2L, b -> new LongBean( b.id, "c" ) );
+        storage.delete( 1L );
+
+        assertThat( storage.get( 1L ) ).isEmpty();
+        assertThat( storage.get( 2L ) ).contains( new LongBean( 2L, "c" ) );
+        assertThat( storage.get( Long.valueOf( 2L ) ) ).contains( new LongBean( 2L, "c" ) );
+        assertThat( storage.list() ).containsOnly( new LongBean( 2L, "c" ) );
+        assertThat( storage.updatedAfter( -1 ).map( m -> m.object ).toList() ).containsExactly( new LongBean( 2L, "c" ) );
+        assertThat( storage.getOrNull( 1L ) ).isNull();
+        assertThat( storage.getOrNull( 2L ) ).isEqualTo( new LongBean( 2L, "c" ) );
+
+        try {
+            DateTimeUtils.setCurrentMillisFixed( 100 );
+            storage.store( new LongBean( 3L, "d" ), 10 );
+            assertThat( storage.getOrNull( 3L ) ).isEqualTo( new LongBean( 3L, "d" ) );
+            DateTimeUtils.setCurrentMillisFixed( 110 );
+            assertThat( storage.getOrNull( 3L ) ).isNull();
+            assertThat( storage.get( 3L ) ).isEmpty();
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void bounded() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        Map<String, Metadata<Bean>> backend = new HashMap<>();
+        storage.setReadThrough( id -> Optional.ofNullable( backend.get( id ) ) );
+        storage.setMaximumSize( 2 );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) ) );
+        assertThat( storage.size() ).isEqualTo( 3 );
+
+        storage.memory.selectChangedAfter( -1 ).forEach( ( id, m ) -> backend.put( id, Metadata.from( m ) ) );
+        storage.memory.persisted( storage.memory.lastSeq() );
+        assertThat( storage.size() ).isEqualTo( 2 );
+        assertThat( storage.list() ).containsOnly( new Bean( "2" ), new Bean( "3" ) );
+
+        assertThat( storage.get( "1" ) ).contains( new Bean( "1" ) );
+        assertThat( storage.list() ).containsOnly( new Bean( "1" ), new Bean( "3" ) );
+
+        storage.store( new Bean( "4" ) );
+        assertThat( storage.list() ).containsOnly( new Bean( "1" ), new Bean( "4" ) );
+
+        assertThatThrownBy( storage::ids ).isInstanceOf( IllegalStateException.class );
+        assertThatThrownBy( () -> storage.changedAfter( -1 ) ).isInstanceOf( IllegalStateException.class );
+    }
+
+    @Test
+    public void readThroughMisses() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        Map<String, Metadata<Bean>> backend = new HashMap<>();
+        var fetches = new AtomicInteger();
+        storage.setReadThrough( id -> {
+            fetches.incrementAndGet();
+            return Optional.ofNullable( backend.get( id ) );
+        } );
+        storage.setMaximumSize( 1 );
+        assertThat( storage.get( "1" ) ).isEmpty();
+        assertThat( storage.get( "1" ) ).isEmpty();
+        assertThat( fetches.get() ).isEqualTo( 1 );
+
+        storage.store( new Bean( "1" ) );
+        storage.store( new Bean( "2" ) );
+        storage.memory.selectChangedAfter( -1 ).forEach( ( id, m ) -> backend.put( id, Metadata.from( m ) ) );
+        storage.memory.persisted( storage.memory.lastSeq() );
+        assertThat( storage.list() ).containsExactly( new Bean( "2" ) );
+
+        assertThat( storage.get( "1" ) ).contains( new Bean( "1" ) );
+        assertThat( fetches.get() ).isEqualTo( 2 );
+    }
+
+    @Test
+    public void ttl() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        List<List<String>> events = new ArrayList<>();
+        storage.addDataListener( new Storage.DataListener<>() {
+            @Override
+            public void deleted( List<IdObject<String, Bean>> objects ) {
+                events.add( Lists.map( objects, io -> io.id ) );
+            }
+        } );
+        try {
+            DateTimeUtils.setCurrentMillisFixed( 100 );
+            storage.store( new Bean( "1" ), 10 );
+            storage.store( new Bean( "2" ), 10 );
+            storage.store( new Bean( "3" ), 50 );
+            storage.store( new Bean( "4" ) );
+            storage.store( new Bean( "2" ), 100 );
+            storage.update( "3", b -> new Bean( b.id, "b" ) );
+
+            DateTimeUtils.setCurrentMillisFixed( 110 );
+            assertThat( storage.get( "1" ) ).isEmpty();
+            assertThat( storage.expire() ).containsExactly( new Bean( "1" ) );
+            assertThat( storage.expire() ).isEmpty();
+
+            DateTimeUtils.setCurrentMillisFixed( 200 );
+            assertThat( storage.expire() ).containsOnly( new Bean( "2" ), new Bean( "3", "b" ) );
+            assertThat( storage.list() ).containsExactly( new Bean( "4" ) );
+            assertThat( events ).hasSize( 2 );
+            assertThat( events.get( 1 ) ).containsOnly( "2", "3" );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void storeAfterExpiration() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        try {
+            DateTimeUtils.setCurrentMillisFixed( 100 );
+            storage.store( new Bean( "1" ), 10 );
+            storage.store( new Bean( "2" ), 10 );
+
+            DateTimeUtils.setCurrentMillisFixed( 110 );
+            assertThat( storage.size() ).isEqualTo( 0 );
+            assertThat( storage.list() ).isEmpty();
+            assertThat( storage.update( "1", b -> new Bean( b.id, "b" ) ) ).isEmpty();
+
+            storage.store( new Bean( "1", "c" ) );
+            assertThat( storage.get( "1" ) ).contains( new Bean( "1", "c" ) );
+
+            assertThat( storage.expire() ).containsExactly( new Bean( "2" ) );
+            storage.store( new Bean( "2", "c" ) );
+            assertThat( storage.get( "2" ) ).contains( new Bean( "2", "c" ) );
+            assertThat( storage.size() ).isEqualTo( 2 );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void purgeTombstone() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ) ) );
+        storage.delete( "1" );
+        storage.delete( "2" );
+        long deleted1 = storage.memory.data.get( "1" ).seq;
+        long deleted2 = storage.memory.data.get( "2" ).seq;
+        storage.store( new Bean( "2", "b" ) );
+        long last = storage.memory.lastSeq();
+
+        assertThat( storage.memory.purgeTombstone( "1", deleted1 ) ).isTrue();
+        assertThat( storage.memory.purgedSeq() ).isEqualTo( deleted1 );
+        assertThat( storage.memory.purgeTombstone( "2", deleted2 ) ).isFalse();
+        assertThat( storage.get( "2" ) ).contains( new Bean( "2", "b" ) );
+        assertThat( storage.memory.purgedSeq() ).isLessThan( last );
+    }
+
+    @Test
+    public void tombstoneCompaction() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        try( var compactor = new TombstoneCompactor<>( storage, 50, 60000 ) ) {
+            DateTimeUtils.setCurrentMillisFixed( 100 );
+            storage.store( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) ) );
+            storage.delete( "1" );
+            DateTimeUtils.setCurrentMillisFixed( 200 );
+            storage.delete( "2" );
+
+            DateTimeUtils.setCurrentMillisFixed( 220 );
+            assertThat( compactor.compact() ).isEqualTo( 1 );
+            assertThat( storage.memory.tombstones() ).isEqualTo( 1 );
+            assertThat( storage.memory.data ).doesNotContainKey( "1" );
+
+            long deletion = storage.memory.data.get( "2" ).seq;
+            storage.memory.persisted( deletion - 1 );
+            DateTimeUtils.setCurrentMillisFixed( 300 );
+            assertThat( compactor.compact() ).isEqualTo( 0 );
+            storage.memory.persisted( deletion );
+            assertThat( compactor.compact() ).isEqualTo( 1 );
+            assertThat( storage.memory.tombstones() ).isEqualTo( 0 );
+            assertThat( storage.list() ).containsExactly( new Bean( "3" ) );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void query() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.parallelismThreshold = 1;
+        for( int i = 0; i < 1000; i++ ) storage.store( new Bean( String.valueOf( i ), i % 2 == 0 ? "even" : "odd" ) );
+        storage.delete( "0" );
+
+        assertThat( storage.count( b -> b.s.equals( "even" ) ) ).isEqualTo( 499 );
+        assertThat( storage.find( b -> b.s.equals( "odd" ), 10 ) ).hasSize( 10 ).allMatch( b -> b.s.equals( "odd" ) );
+        assertThat( storage.find( b -> b.id.equals( "0" ), 10 ) ).isEmpty();
+        assertThat( storage.aggregate( b -> Long.parseLong( b.id ), Long::sum ) ).contains( 999L * 1000 / 2 );
+        assertThat( storage.aggregate( b -> b.id.equals( "1" ) ? null : 1, Integer::sum ) ).contains( 998 );
+        assertThat( storage.parallelSelect().count() ).isEqualTo( 999 );
+    }
+
+    @Test
+    public void snapshot() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ), new Bean( "4" ) ) );
+        storage.delete( "4" );
+
+        try( var snapshot = storage.snapshot() ) {
+            storage.update( "1", b -> new Bean( b.id, "b" ) );
+            storage.update( "1", b -> new Bean( b.id, "c" ) );
+            storage.delete( "2" );
+            storage.permanentlyDelete( "3" );
+            storage.store( new Bean( "4", "d" ) );
+            storage.store( new Bean( "5" ) );
+
+            assertThat( snapshot.select() ).containsOnly( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) );
+            assertThat( snapshot.get( "1" ) ).contains( new Bean( "1" ) );
+            assertThat( snapshot.get( "4" ) ).isEmpty();
+            assertThat( snapshot.get( "5" ) ).isEmpty();
+            assertThat( storage.list() ).containsOnly( new Bean( "1", "c" ), new Bean( "4", "d" ), new Bean( "5" ) );
+        }
+        assertThat( storage.memory.data.get( "1" ).previous ).isNull();
+    }
+
+    @Test
+    public void snapshotsClosedOutOfOrder() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ) ) );
+
+        var a = storage.snapshot();
+        storage.store( new Bean( "1", "b" ) );
+        var b = storage.snapshot();
+        storage.store( new Bean( "2", "b" ) );
+        a.close();
+        assertThat( b.get( "1" ) ).contains( new Bean( "1", "b" ) );
+        assertThat( b.get( "2" ) ).contains( new Bean( "2" ) );
+        b.close();
+
+        assertThat( storage.memory.data.get( "1" ).previous ).isNull();
+        assertThat( storage.memory.data.get( "2" ).previous ).isNull();
+    }
+
+    @Test
+    public void getOrNull() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        storage.store( List.of( new Bean( "1" ), new Bean( "2" ) ) );
+        storage.delete( "2" );
+
+        assertThat( storage.getOrNull( "1" ) ).isEqualTo( new Bean( "1" ) );
+        assertThat( storage.getOrNull( "2" ) ).isNull();
+        assertThat( storage.getOrNull( "3" ) ).isNull();
+        assertThat( storage.getMetadata( "1" ).object ).isEqualTo( new Bean( "1" ) );
+        assertThat( storage.getMetadata( "2" ) ).isNull();
+    }
+
+    @Test( enabled = false )
+    public void getPerformance() {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var ids = new String[1000];
+        for( int i = 0; i < ids.length; i++ ) storage.store( new Bean( ids[i] = String.valueOf( i ) ) );
+
+        var i = new int[1];
+        Benchmark.benchmark( "get", 10_000_000, () -> storage.get( ids[i[0]++ % ids.length] ) )
+            .experiments( 5 )
+            .run();
+        Benchmark.benchmark( "getOrNull", 10_000_000, () -> storage.getOrNull( ids[i[0]++ % ids.length] ) )
+            .experiments( 5 )
+            .run();
+    }
+
     @EqualsAndHashCode
     @ToString
     static class IntBean {
@@ -138,4 +710,16 @@ public class MemoryStorageTest {
             this.name = name;
         }
     }
+
+    @EqualsAndHashCode
+    @ToString
+    static class LongBean {
+        Long id;
+        String name;
+
+        LongBean( Long id, String name ) {
+            this.id = id;
+            this.name = name;
+        }
+    }
 }
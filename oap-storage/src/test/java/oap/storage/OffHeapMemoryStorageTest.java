@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.id.Identifier;
+import oap.json.TypeIdFactory;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static oap.storage.Storage.Lock.SERIALIZED;
+import static oap.testng.Asserts.assertEventually;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffHeapMemoryStorageTest {
+    static {
+        TypeIdFactory.register( Bean.class, Bean.class.getName() );
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        Replicator.reset();
+    }
+
+    @DataProvider
+    public Object[][] cacheSizes() {
+        return new Object[][] { { 0 }, { 10 } };
+    }
+
+    @Test( dataProvider = "cacheSizes" )
+    public void crud( int cacheSize ) {
+        var storage = new OffHeapMemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED,
+            Fingerprint.HASH_CODE, 1024, cacheSize );
+        for( int i = 0; i < 100; i++ ) storage.store( new Bean( "1", "v" + i ) );
+        storage.store( new Bean( "2" ) );
+        storage.store( new Bean( "3" ) );
+        storage.update( "2", b -> new Bean( b.id, "b" ) );
+        storage.delete( "3" );
+
+        assertThat( storage.get( "1" ) ).contains( new Bean( "1", "v99" ) );
+        assertThat( storage.get( "2" ) ).contains( new Bean( "2", "b" ) );
+        assertThat( storage.get( "3" ) ).isEmpty();
+        assertThat( storage.list() ).containsOnly( new Bean( "1", "v99" ), new Bean( "2", "b" ) );
+        assertThat( storage.size() ).isEqualTo( 2 );
+        assertThat( storage.offHeapBytes() ).isLessThan( 3 * 1024 );
+
+        storage.permanentlyDelete( "3" );
+        assertThat( storage.selectAll().toList() ).hasSize( 2 );
+    }
+
+    @Test
+    public void metadataMap() {
+        var map = new OffHeapMetadataMap<String, Bean>( 1024, 0 );
+        var m = new Metadata<>( new Bean( "1" ) );
+        m.seq = 5;
+        m.size = 42;
+        assertThat( map.put( "1", m ) ).isNull();
+        var stored = map.get( "1" );
+        assertThat( stored ).isEqualTo( m );
+        assertThat( stored.seq ).isEqualTo( 5 );
+        assertThat( stored.size ).isEqualTo( 42 );
+
+        long allocated = map.allocated();
+        assertThat( map.computeIfPresent( "1", ( id, old ) -> old ) ).isEqualTo( m );
+        assertThat( map.allocated() ).isEqualTo( allocated );
+
+        assertThat( map.put( "1", new Metadata<>( new Bean( "1", "b" ) ) ) ).isEqualTo( m );
+        assertThat( map.get( "1" ).object ).isEqualTo( new Bean( "1", "b" ) );
+    }
+
+    @Test
+    public void replication() {
+        var master = new OffHeapMemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED, 0 );
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        try( var ignored = new Replicator<>( slave, master, 50 ) ) {
+            master.store( new Bean( "1" ) );
+            master.store( new Bean( "2" ) );
+            master.update( "1", b -> new Bean( b.id, "b" ) );
+
+            assertEventually( 100, 50, () -> assertThat( slave.list() ).containsOnly( new Bean( "1", "b" ), new Bean( "2" ) ) );
+        }
+    }
+}
@@ -24,6 +24,7 @@
 
 package oap.storage;
 
+import oap.benchmark.Benchmark;
 import oap.id.Identifier;
 import oap.json.TypeIdFactory;
 import org.joda.time.DateTimeUtils;
@@ -31,7 +32,10 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static oap.storage.Storage.Lock.SERIALIZED;
 import static oap.testng.Asserts.assertEventually;
@@ -128,28 +132,289 @@ public class ReplicatorTest {
             DateTimeUtils.setCurrentMillisFixed( 2 );
             master.store( new Bean( "2" ) );
             replicator.replicateNow();
-            assertCounter( 3L, 0L );
+            assertCounter( 2L, 0L );
 
             master.store( new Bean( "3" ) );
 
             replicator.replicateNow();
-            assertCounter( 5L, 0L );
+            assertCounter( 3L, 0L );
 
             replicator.replicateNow();
-            assertCounter( 5L, 0L );
+            assertCounter( 3L, 0L );
 
             replicator.replicateNow();
-            assertCounter( 5L, 0L );
+            assertCounter( 3L, 0L );
 
             DateTimeUtils.setCurrentMillisFixed( 3 );
             master.store( new Bean( "4" ) );
             replicator.replicateNow();
-            assertCounter( 6L, 0L );
+            assertCounter( 4L, 0L );
 
             assertThat( slave.list() ).containsOnly( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ), new Bean( "4" ) );
         }
     }
 
+    @Test
+    public void deletionFeed() {
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var idsCalls = new AtomicInteger();
+        var counting = new ReplicationMaster<String, Bean>() {
+            @Override
+            public Stream<Metadata<Bean>> updatedSince( long since ) {
+                return master.updatedSince( since );
+            }
+
+            @Override
+            public boolean sequenced() {
+                return true;
+            }
+
+            @Override
+            public Stream<Metadata<Bean>> updatedAfter( long seq ) {
+                return master.updatedAfter( seq );
+            }
+
+            @Override
+            public Stream<Metadata<Bean>> changedAfter( long seq ) {
+                return master.changedAfter( seq );
+            }
+
+            @Override
+            public long purgedSeq() {
+                return master.purgedSeq();
+            }
+
+            @Override
+            public List<String> ids() {
+                idsCalls.incrementAndGet();
+                return master.ids();
+            }
+        };
+        try( var replicator = new Replicator<>( slave, counting, 60000 ) ) {
+            master.store( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) ) );
+            var last = replicator.replicate( -1 );
+            assertThat( slave.list() ).containsOnly( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) );
+            var reconciliations = idsCalls.get();
+
+            master.delete( "1" );
+            last = replicator.replicate( last );
+            assertThat( slave.list() ).containsOnly( new Bean( "2" ), new Bean( "3" ) );
+            assertThat( idsCalls.get() ).isEqualTo( reconciliations );
+
+            master.permanentlyDelete( "2" );
+            last = replicator.replicate( last );
+            assertThat( slave.list() ).containsOnly( new Bean( "3" ) );
+            assertThat( idsCalls.get() ).isEqualTo( reconciliations + 1 );
+
+            replicator.replicate( last );
+            assertThat( idsCalls.get() ).isEqualTo( reconciliations + 1 );
+        }
+    }
+
+    @Test
+    public void changeNotVisibleBeforePurge() {
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var idsCalls = new AtomicInteger();
+        var hidden = new AtomicBoolean( true );
+        var hiding = new ReplicationMaster<String, Bean>() {
+            @Override
+            public Stream<Metadata<Bean>> updatedSince( long since ) {
+                return master.updatedSince( since );
+            }
+
+            @Override
+            public boolean sequenced() {
+                return true;
+            }
+
+            @Override
+            public Stream<Metadata<Bean>> changedAfter( long seq, int limit ) {
+                // the last write is still in flight for the first pull
+                boolean hide = hidden.getAndSet( false );
+                return master.changedAfter( seq, limit ).filter( m -> !hide || !m.object.id.equals( "3" ) );
+            }
+
+            @Override
+            public long purgedSeq() {
+                return master.purgedSeq();
+            }
+
+            @Override
+            public List<String> ids() {
+                idsCalls.incrementAndGet();
+                return master.ids();
+            }
+        };
+        try( var replicator = new Replicator<>( slave, hiding, 60000 ) ) {
+            master.store( List.of( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) ) );
+            master.store( new Bean( "4" ) );
+            master.permanentlyDelete( "4" );
+
+            var last = replicator.replicate( -1 );
+            assertThat( slave.list() ).containsOnly( new Bean( "1" ), new Bean( "2" ) );
+            assertThat( idsCalls.get() ).isEqualTo( 1 );
+
+            last = replicator.replicate( last );
+            assertThat( slave.list() ).containsOnly( new Bean( "1" ), new Bean( "2" ), new Bean( "3" ) );
+            assertThat( idsCalls.get() ).isEqualTo( 1 );
+
+            replicator.replicate( last );
+            assertThat( idsCalls.get() ).isEqualTo( 1 );
+        }
+    }
+
+    @Test
+    public void paged() {
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var pages = new AtomicInteger();
+        slave.addDataListener( new Storage.DataListener<>() {
+            @Override
+            public void added( List<IdObject<String, Bean>> objects ) {
+                assertThat( objects.size() ).isLessThanOrEqualTo( 2 );
+                pages.incrementAndGet();
+            }
+        } );
+        try( var replicator = new Replicator<>( slave, master, 60000 ) ) {
+            replicator.batchSize = 2;
+            for( int i = 0; i < 5; i++ ) master.store( new Bean( String.valueOf( i ) ) );
+
+            var last = replicator.replicate( -1 );
+            assertThat( slave.size() ).isEqualTo( 5 );
+            assertThat( pages.get() ).isEqualTo( 3 );
+            assertThat( last ).isEqualTo( master.getMetadata( "4" ).seq );
+        }
+    }
+
+    @Test
+    public void unsequencedMaster() {
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var objects = new ConcurrentHashMap<String, Metadata<Bean>>();
+        var master = new ReplicationMaster<String, Bean>() {
+            @Override
+            public Stream<Metadata<Bean>> updatedSince( long since ) {
+                return objects.values().stream().filter( m -> m.modified >= since );
+            }
+
+            @Override
+            public List<String> ids() {
+                return List.copyOf( objects.keySet() );
+            }
+        };
+        try( var replicator = new Replicator<>( slave, master, 60000 ) ) {
+            replicator.batchSize = 2;
+            DateTimeUtils.setCurrentMillisFixed( 10 );
+            for( int i = 0; i < 5; i++ ) objects.put( String.valueOf( i ), new Metadata<>( new Bean( String.valueOf( i ) ) ) );
+
+            var last = replicator.replicate( -1 );
+            assertThat( slave.size() ).isEqualTo( 5 );
+            assertThat( last ).isEqualTo( 10 );
+
+            objects.put( "1", new Metadata<>( new Bean( "1", "b" ) ) );
+            objects.remove( "2" );
+            last = replicator.replicate( last );
+            assertThat( slave.list() ).containsOnly( new Bean( "0" ), new Bean( "1", "b" ), new Bean( "3" ), new Bean( "4" ) );
+            assertThat( last ).isEqualTo( 10 );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void binary() {
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var codec = ReplicationCodec.json( Bean.class );
+        master.setReplicationCodec( codec );
+        master.store( new Bean( "1" ) );
+        master.store( new Bean( "2", "bbb" ), 60000 );
+        master.store( new Bean( "3" ) );
+        master.delete( "3" );
+
+        var decoded = codec.decode( master.changedAfterEncoded( -1, 10 ) );
+        assertThat( decoded ).hasSize( 3 );
+        var expected = master.changedAfter( -1, 10 ).toList();
+        for( int i = 0; i < decoded.size(); i++ ) {
+            assertThat( decoded.get( i ).object ).isEqualTo( expected.get( i ).object );
+            assertThat( decoded.get( i ).seq ).isEqualTo( expected.get( i ).seq );
+            assertThat( decoded.get( i ).modified ).isEqualTo( expected.get( i ).modified );
+            assertThat( decoded.get( i ).hash ).isEqualTo( expected.get( i ).hash );
+            assertThat( decoded.get( i ).expires ).isEqualTo( expected.get( i ).expires );
+            assertThat( decoded.get( i ).isDeleted() ).isEqualTo( expected.get( i ).isDeleted() );
+        }
+
+        try( var replicator = new Replicator<>( slave, master, 60000 ) ) {
+            replicator.codec = codec;
+            replicator.replicate( -1 );
+            assertThat( slave.list() ).containsOnly( new Bean( "1" ), new Bean( "2", "bbb" ) );
+            assertThat( slave.getMetadata( "2" ).expires ).isEqualTo( master.getMetadata( "2" ).expires );
+        }
+    }
+
+    @Test
+    public void push() {
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        long seq = master.awaitChangedAfter( -1, 0 );
+        assertThat( seq ).isGreaterThan( -1 );
+        assertThat( master.awaitChangedAfter( seq, 10 ) ).isEqualTo( seq );
+        try( var replicator = new Replicator<>( slave, master, 60000 ) ) {
+            replicator.push( 1000 );
+            master.store( new Bean( "1" ) );
+            assertEventually( 50, 40, () -> assertThat( slave.list() ).containsOnly( new Bean( "1" ) ) );
+            master.delete( "1" );
+            assertEventually( 50, 40, () -> assertThat( slave.list() ).isEmpty() );
+        }
+    }
+
+    @Test( enabled = false )
+    public void parallelApplyPerformance() {
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        for( int i = 0; i < 200_000; i++ ) master.store( new Bean( String.valueOf( i ) ) );
+        for( var parallelism : new int[] { 1, 4 } )
+            Benchmark.benchmark( "apply-" + parallelism, 1, () -> {
+                    var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+                    try( var replicator = new Replicator<>( slave, master, 60000 ) ) {
+                        replicator.parallelism = parallelism;
+                        replicator.replicate( -1 );
+                    }
+                } )
+                .experiments( 5 )
+                .run();
+    }
+
+    @Test
+    public void parallelApply() {
+        var slave = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var master = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), SERIALIZED );
+        var events = new AtomicInteger();
+        var added = new AtomicInteger();
+        slave.addDataListener( new Storage.DataListener<>() {
+            @Override
+            public void changed( List<IdObject<String, Bean>> a, List<IdObject<String, Bean>> u, List<IdObject<String, Bean>> d ) {
+                events.incrementAndGet();
+                added.addAndGet( a.size() );
+            }
+        } );
+        try( var replicator = new Replicator<>( slave, master, 60000 ) ) {
+            replicator.parallelism = 4;
+            replicator.parallelThreshold = 10;
+            for( int i = 0; i < 1000; i++ ) master.store( new Bean( String.valueOf( i ) ) );
+
+            var last = replicator.replicate( -1 );
+            assertThat( slave.size() ).isEqualTo( 1000 );
+            assertThat( events.get() ).isEqualTo( 1 );
+            assertThat( added.get() ).isEqualTo( 1000 );
+
+            for( int i = 0; i < 500; i++ ) master.delete( String.valueOf( i ) );
+            replicator.replicate( last );
+            assertThat( slave.size() ).isEqualTo( 500 );
+            assertThat( events.get() ).isEqualTo( 2 );
+        }
+    }
+
     private void assertCounter( long stored, long deleted ) {
         assertThat( Replicator.stored.longValue() ).isEqualTo( stored );
         assertThat( Replicator.deleted.longValue() ).isEqualTo( deleted );
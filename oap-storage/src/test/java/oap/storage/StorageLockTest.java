@@ -0,0 +1,84 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.storage;
+
+import oap.benchmark.Benchmark;
+import oap.id.Identifier;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static oap.storage.Storage.Lock.CONCURRENT;
+import static oap.storage.Storage.Lock.SERIALIZED;
+import static oap.storage.Storage.Lock.STRIPED;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StorageLockTest {
+    @Test
+    public void stripedUpdate() throws InterruptedException {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), STRIPED );
+        ExecutorService pool = Executors.newFixedThreadPool( 8 );
+        for( int i = 0; i < 1000; i++ )
+            pool.execute( () -> storage.update( "1", b -> new Bean( b.id, b.s + "x" ), () -> new Bean( "1", "" ) ) );
+        pool.shutdown();
+        assertThat( pool.awaitTermination( 10, TimeUnit.SECONDS ) ).isTrue();
+
+        assertThat( storage.get( "1" ).orElseThrow().s ).hasSize( 999 );
+    }
+
+    @Test
+    public void stripedInitOfAnotherId() throws InterruptedException {
+        var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), new Storage.Lock.StripedLock( 64 ) );
+        ExecutorService pool = Executors.newFixedThreadPool( 2 );
+        for( var ids : new String[][] { { "a", "b" }, { "b", "a" } } )
+            pool.execute( () -> {
+                for( int i = 0; i < 10000; i++ ) {
+                    storage.update( ids[0], b -> b, () -> new Bean( ids[1] ) );
+                    storage.permanentlyDelete( ids[1] );
+                }
+            } );
+        pool.shutdown();
+        assertThat( pool.awaitTermination( 10, TimeUnit.SECONDS ) ).isTrue();
+    }
+
+    @Test( enabled = false )
+    public void contention() {
+        for( var lock : new Storage.Lock[] { CONCURRENT, SERIALIZED, STRIPED } ) {
+            var storage = new MemoryStorage<>( Identifier.<Bean>forId( b -> b.id ).build(), lock );
+            var ids = new AtomicInteger();
+            Benchmark.benchmark( "update-" + lock.getClass().getSimpleName(), 1000000,
+                    () -> {
+                        var id = String.valueOf( ids.incrementAndGet() % 100 );
+                        storage.update( id, b -> b, () -> new Bean( id ) );
+                    } )
+                .inThreads( 16 )
+                .experiments( 5 )
+                .run();
+        }
+    }
+}